@@ -0,0 +1,331 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import cn.weforward.buildplugin.support.AbstractBuildMojo;
+import cn.weforward.buildplugin.util.StringUtil;
+
+/**
+ * 生成类数据共享（AppCDS）归档命令
+ * <p>
+ * 用本机的JDK试运行jar或repackage生成的jar包，记录启动时加载的类并生成归档（&lt;finalName&gt;.jsa），同时生成启动参数文件（&lt;finalName&gt;.jsa.args），
+ * 在jar包所在目录下以“java @&lt;finalName&gt;.jsa.args 程序参数”启动即可使用归档。JDK13及以上使用动态归档，JDK10~12先导出类列表再生成归档
+ * <p>
+ * AppCDS只归档从类路径上的jar包加载的类，fatjar中BOOT-INF/classes与BOOT-INF/lib下的类由Spring Boot的类加载器从嵌套的jar包加载，不会进入归档，
+ * 只有JDK与加载器自身的类能共享。要归档应用与依赖的类请使用thinjar或普通jar（依赖在lib目录下）
+ *
+ * @author daibo
+ */
+@Mojo(name = "cds")
+public class CdsBuildMojo extends AbstractBuildMojo {
+	/** java命令，默认为当前JDK的java */
+	@Parameter(defaultValue = "${cds.java}")
+	protected String cdsJava;
+	/** 试运行时的jvm参数 */
+	@Parameter
+	protected String[] cdsJvmArgs;
+	/** 试运行时的程序参数 */
+	@Parameter
+	protected String[] cdsAppArgs;
+	/** 启动完成的标志，输出中出现匹配的行即认为启动完成，为空时等待程序退出 */
+	@Parameter(defaultValue = "${cds.readyPattern}")
+	protected String cdsReadyPattern;
+	/** 每次试运行的最长时间（秒），超时后结束程序 */
+	@Parameter(defaultValue = "${cds.timeout}")
+	protected int cdsTimeout;
+	/** 是否对比使用归档前后的启动时间 */
+	@Parameter(defaultValue = "${cds.measure}")
+	protected boolean cdsMeasure;
+	/** 对比启动时间时各运行的次数 */
+	@Parameter(defaultValue = "${cds.measureRuns}")
+	protected int cdsMeasureRuns;
+
+	/** 默认的试运行时间（秒） */
+	private static final int DEFAULT_TIMEOUT = 60;
+	/** 默认的对比次数 */
+	private static final int DEFAULT_MEASURE_RUNS = 3;
+	/** Spring Boot加载器的包 */
+	private static final String SPRING_BOOT_LOADER = "org.springframework.boot.loader.";
+	/** java版本号 */
+	private static final Pattern JAVA_VERSION = Pattern.compile("version \"(1\\.)?(\\d+)");
+
+	@Override
+	public void execute() throws MojoFailureException {
+		if (!"jar".equals(project.getPackaging())) {
+			getLog().info("非jar项目，不生成归档");
+			return;
+		}
+		File jar = AbstractBuildMojo.getJarFile(outputDirectory, finalName, "");
+		if (!jar.isFile()) {
+			throw new MojoFailureException("找不到" + jar.getName() + "，请先执行jar或repackage");
+		}
+		if (StringUtil.isEmpty(mainClass)) {
+			throw new MojoFailureException("未指定mainClass");
+		}
+		String java = StringUtil.isEmpty(cdsJava)
+				? new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath()
+				: cdsJava;
+		int feature = getJavaFeature(java);
+		if (feature < 10) {
+			throw new MojoFailureException("生成AppCDS归档需要JDK10及以上，当前为" + feature);
+		}
+		if (isNestedJar(jar)) {
+			getLog().warn(jar.getName() + "是Spring Boot的fatjar，应用与依赖的类从嵌套的jar包加载，不会进入归档，只能共享JDK与加载器的类；"
+					+ "需要归档应用的类请改用thinjar");
+		}
+		File dir = jar.getParentFile();
+		String jsaName = finalName + ".jsa";
+		File jsa = new File(dir, jsaName);
+		if (jsa.exists()) {
+			jsa.delete();
+		}
+		// 在jar包目录下以相对路径运行，归档记录的类路径与部署后一致
+		List<String> classpath = getClasspath(jar);
+		long start = System.currentTimeMillis();
+		if (feature >= 13) {
+			List<String> cmd = new ArrayList<String>();
+			cmd.add(java);
+			cmd.add("-XX:ArchiveClassesAtExit=" + jsaName);
+			addJvmArgs(cmd);
+			cmd.addAll(classpath);
+			addAppArgs(cmd);
+			run(cmd, dir, "试运行");
+		} else {
+			String listName = finalName + ".classlist";
+			File list = new File(dir, listName);
+			List<String> cmd = new ArrayList<String>();
+			cmd.add(java);
+			cmd.add("-Xshare:off");
+			if (feature == 10) {
+				cmd.add("-XX:+UseAppCDS");
+			}
+			cmd.add("-XX:DumpLoadedClassList=" + listName);
+			addJvmArgs(cmd);
+			cmd.addAll(classpath);
+			addAppArgs(cmd);
+			run(cmd, dir, "试运行");
+			if (!list.isFile()) {
+				throw new MojoFailureException("试运行没有生成类列表" + list);
+			}
+			cmd = new ArrayList<String>();
+			cmd.add(java);
+			cmd.add("-Xshare:dump");
+			if (feature == 10) {
+				cmd.add("-XX:+UseAppCDS");
+			}
+			cmd.add("-XX:SharedClassListFile=" + listName);
+			cmd.add("-XX:SharedArchiveFile=" + jsaName);
+			cmd.add("-cp");
+			cmd.add(classpath.get(1));
+			run(cmd, dir, "生成归档");
+			list.delete();
+		}
+		if (!jsa.isFile()) {
+			throw new MojoFailureException("没有生成归档" + jsa + "，请检查试运行的输出（mvn -X）");
+		}
+		List<String> launch = new ArrayList<String>();
+		launch.add("-XX:SharedArchiveFile=" + jsaName);
+		launch.add("-Xshare:auto");
+		launch.addAll(classpath);
+		File args = new File(dir, jsaName + ".args");
+		writeArgs(args, launch);
+		getLog().info("生成归档 " + jsa.getName() + "(" + (jsa.length() >> 10) + "KB)，耗时"
+				+ (System.currentTimeMillis() - start) + "ms，启动参数见 " + args.getName());
+		if (cdsMeasure) {
+			measure(java, dir, classpath, jsaName);
+		}
+	}
+
+	/* 类路径参数，fatjar与thinjar直接-jar，否则带上依赖包 */
+	private List<String> getClasspath(File jar) throws MojoFailureException {
+		if (fatjar || thinjar) {
+			return Arrays.asList("-jar", jar.getName());
+		}
+		StringBuilder sb = new StringBuilder(jar.getName());
+		for (File f : getLibFiles()) {
+			sb.append(File.pathSeparatorChar).append(f.getAbsolutePath());
+		}
+		return Arrays.asList("-cp", sb.toString(), mainClass);
+	}
+
+	/* 是否由Spring Boot的加载器启动（类在嵌套的jar包中） */
+	private static boolean isNestedJar(File jar) throws MojoFailureException {
+		try (JarFile jf = new JarFile(jar)) {
+			Manifest mf = jf.getManifest();
+			String main = null == mf ? null : mf.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+			return null != main && main.startsWith(SPRING_BOOT_LOADER);
+		} catch (IOException e) {
+			throw new MojoFailureException("读取" + jar + "失败:" + e.getMessage(), e);
+		}
+	}
+
+	private void addJvmArgs(List<String> cmd) {
+		if (null != cdsJvmArgs) {
+			cmd.addAll(Arrays.asList(cdsJvmArgs));
+		}
+	}
+
+	private void addAppArgs(List<String> cmd) {
+		if (null != cdsAppArgs) {
+			cmd.addAll(Arrays.asList(cdsAppArgs));
+		}
+	}
+
+	/* 对比使用归档前后的启动时间 */
+	private void measure(String java, File dir, List<String> classpath, String jsaName) throws MojoFailureException {
+		int runs = cdsMeasureRuns < 1 ? DEFAULT_MEASURE_RUNS : cdsMeasureRuns;
+		long without = 0;
+		long with = 0;
+		for (int i = 0; i < runs; i++) {
+			List<String> cmd = new ArrayList<String>();
+			cmd.add(java);
+			cmd.add("-Xshare:auto");
+			addJvmArgs(cmd);
+			cmd.addAll(classpath);
+			addAppArgs(cmd);
+			without += run(cmd, dir, "未使用归档启动");
+			cmd = new ArrayList<String>();
+			cmd.add(java);
+			cmd.add("-XX:SharedArchiveFile=" + jsaName);
+			cmd.add("-Xshare:auto");
+			addJvmArgs(cmd);
+			cmd.addAll(classpath);
+			addAppArgs(cmd);
+			with += run(cmd, dir, "使用归档启动");
+		}
+		without /= runs;
+		with /= runs;
+		getLog().info("平均启动时间(" + runs + "次)：未使用归档" + without + "ms，使用归档" + with + "ms"
+				+ (without > 0 ? "，减少" + ((without - with) * 100 / without) + "%" : ""));
+	}
+
+	/*
+	 * 运行命令直到退出、输出中出现启动完成的标志或超时，后两种情况结束程序（正常退出流程，动态归档在退出时生成），返回启动耗时
+	 */
+	private long run(List<String> cmd, File dir, String title) throws MojoFailureException {
+		getLog().debug(title + ":" + cmd);
+		final Pattern ready = StringUtil.isEmpty(cdsReadyPattern) ? null : Pattern.compile(cdsReadyPattern);
+		final CountDownLatch latch = new CountDownLatch(1);
+		final long[] readyTime = new long[] { -1 };
+		long start = System.currentTimeMillis();
+		final Process process;
+		try {
+			process = new ProcessBuilder(cmd).directory(dir).redirectErrorStream(true).start();
+		} catch (IOException e) {
+			throw new MojoFailureException(title + "失败:" + e.getMessage(), e);
+		}
+		Thread reader = new Thread("cds-output") {
+			@Override
+			public void run() {
+				try (BufferedReader in = new BufferedReader(
+						new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+					String line;
+					while (null != (line = in.readLine())) {
+						getLog().debug(line);
+						if (null != ready && readyTime[0] < 0 && ready.matcher(line).find()) {
+							readyTime[0] = System.currentTimeMillis();
+							latch.countDown();
+						}
+					}
+				} catch (IOException e) {
+					// 进程已结束
+				} finally {
+					latch.countDown();
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+		int timeout = cdsTimeout < 1 ? DEFAULT_TIMEOUT : cdsTimeout;
+		try {
+			if (!latch.await(timeout, TimeUnit.SECONDS)) {
+				getLog().warn(title + "超过" + timeout + "秒，结束程序");
+			}
+			long end = readyTime[0] < 0 ? System.currentTimeMillis() : readyTime[0];
+			// 已退出时destroy无影响
+			process.destroy();
+			int code = process.waitFor();
+			reader.join(TimeUnit.SECONDS.toMillis(timeout));
+			if (readyTime[0] < 0 && null == ready && code != 0) {
+				getLog().warn(title + "退出码为" + code);
+			}
+			return end - start;
+		} catch (InterruptedException e) {
+			process.destroy();
+			Thread.currentThread().interrupt();
+			throw new MojoFailureException(title + "被中断", e);
+		}
+	}
+
+	/* 取java的主版本号 */
+	private int getJavaFeature(String java) throws MojoFailureException {
+		try {
+			Process process = new ProcessBuilder(java, "-version").redirectErrorStream(true).start();
+			StringBuilder sb = new StringBuilder();
+			try (BufferedReader in = new BufferedReader(
+					new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+				String line;
+				while (null != (line = in.readLine())) {
+					sb.append(line).append('\n');
+				}
+			}
+			process.waitFor();
+			Matcher m = JAVA_VERSION.matcher(sb);
+			if (!m.find()) {
+				throw new MojoFailureException("无法识别java版本:" + sb);
+			}
+			return Integer.parseInt(m.group(2));
+		} catch (IOException e) {
+			throw new MojoFailureException("执行" + java + "失败:" + e.getMessage(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoFailureException("获取java版本被中断", e);
+		}
+	}
+
+	/* 写启动参数文件，每行一个参数 */
+	private static void writeArgs(File file, List<String> args) throws MojoFailureException {
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+			for (String arg : args) {
+				if (arg.indexOf(' ') >= 0 || arg.indexOf('\\') >= 0) {
+					arg = "\"" + arg.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+				}
+				out.write(arg);
+				out.write('\n');
+			}
+		} catch (IOException e) {
+			throw new MojoFailureException("写入" + file + "失败:" + e.getMessage(), e);
+		}
+	}
+}
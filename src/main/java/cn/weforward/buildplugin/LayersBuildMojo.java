@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+
+import cn.weforward.buildplugin.support.AbstractBuildMojo;
+import cn.weforward.buildplugin.util.JarUtil;
+
+/**
+ * 按层解开分层的jar包
+ * <p>
+ * 打入jar包的spring boot加载器是1.5版本的，不认识分层索引，也没有layertools，由此目标代替：按{@link JarUtil#LAYERS_INDEX}
+ * 把layered=true生成的jar包解开到target/layers/&lt;层名&gt;/。镜像按输出的顺序逐层COPY到同一个目录，
+ * 在该目录中以java org.springframework.boot.loader.JarLauncher启动，只改了应用代码时只有最后一层变化
+ *
+ * @author daibo
+ */
+@Mojo(name = "layers")
+public class LayersBuildMojo extends AbstractBuildMojo {
+
+	@Override
+	public void execute() throws MojoFailureException {
+		if (!"jar".equals(project.getPackaging())) {
+			getLog().info("非jar项目，不解开");
+			return;
+		}
+		File jar = AbstractBuildMojo.getJarFile(outputDirectory, finalName, "");
+		if (!jar.isFile()) {
+			throw new MojoFailureException("找不到" + jar.getName() + "，请先以layered=true执行jar或repackage");
+		}
+		File dir = new File(outputDirectory, "layers");
+		List<String> layers;
+		try {
+			layers = JarUtil.extractLayers(jar, dir);
+		} catch (IOException e) {
+			throw new MojoFailureException("解开" + jar.getName() + "失败:" + e.getMessage(), e);
+		}
+		for (String layer : layers) {
+			getLog().info("Layer " + new File(dir, layer));
+		}
+	}
+}
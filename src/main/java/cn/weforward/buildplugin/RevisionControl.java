@@ -27,6 +27,14 @@ public interface RevisionControl {
 	 */
 	String getVersion() throws MojoFailureException;
 
+	/**
+	 * 获取当前检出版本的提交时间，只与检出的版本有关，不受其它分支、暂存或服务端新提交的影响
+	 * 
+	 * @return 提交时间（毫秒），无法获取时返回0
+	 * @throws MojoFailureException mojo异常
+	 */
+	long getCommitTime() throws MojoFailureException;
+
 	/**
 	 * 是否有修改未提交
 	 * 
@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import cn.weforward.buildplugin.support.AbstractBuildMojo;
+import cn.weforward.buildplugin.util.JarSizeAnalyzer;
+
+/**
+ * 分析jar包大小
+ * <p>
+ * 按依赖包、包名与类型统计jar或repackage生成的jar包，列出多个依赖包中重复的资源，并与上一次的jar包（.original）对比，
+ * 报告写到&lt;finalName&gt;-size.json，控制台输出摘要。配置了sizeBudget时超出即失败，可用于在持续集成中控制jar包大小
+ *
+ * @author daibo
+ */
+@Mojo(name = "size")
+public class SizeBuildMojo extends AbstractBuildMojo {
+	/** 摘要中每项列出的前几个 */
+	@Parameter(defaultValue = "${size.top}")
+	protected int sizeTop = 10;
+	/** jar包大小的上限（KB），不大于0时不检查 */
+	@Parameter(defaultValue = "${size.budget}")
+	protected long sizeBudget;
+
+	@Override
+	public void execute() throws MojoFailureException {
+		if (!"jar".equals(project.getPackaging())) {
+			getLog().info("非jar项目，不分析");
+			return;
+		}
+		File jar = AbstractBuildMojo.getJarFile(outputDirectory, finalName, "");
+		if (!jar.isFile()) {
+			throw new MojoFailureException("找不到" + jar.getName() + "，请先执行jar或repackage");
+		}
+		JarSizeAnalyzer analyzer = new JarSizeAnalyzer(jar);
+		File report = new File(outputDirectory, finalName + "-size.json");
+		try {
+			analyzer.analyze();
+			analyzer.setPrevious(new File(jar.getAbsolutePath() + ".original"));
+			analyzer.writeJson(report);
+		} catch (IOException e) {
+			throw new MojoFailureException("分析" + jar.getName() + "失败:" + e.getMessage(), e);
+		}
+		for (String line : analyzer.getSummary(sizeTop)) {
+			getLog().info(line);
+		}
+		getLog().info("报告见 " + report.getName());
+		if (sizeBudget > 0 && analyzer.getFileSize() > sizeBudget * 1024) {
+			throw new MojoFailureException(jar.getName() + "大小" + JarSizeAnalyzer.formatSize(analyzer.getFileSize())
+					+ "超出上限" + JarSizeAnalyzer.formatSize(sizeBudget * 1024));
+		}
+	}
+}
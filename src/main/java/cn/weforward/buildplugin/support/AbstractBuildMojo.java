@@ -13,13 +13,29 @@ package cn.weforward.buildplugin.support;
 import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.ArtifactUtils;
@@ -48,14 +64,25 @@ import org.apache.maven.shared.dependency.graph.filter.DependencyNodeFilter;
 import org.apache.maven.shared.dependency.graph.traversal.CollectingDependencyNodeVisitor;
 import org.apache.maven.shared.dependency.graph.traversal.DependencyNodeVisitor;
 import org.apache.maven.shared.dependency.graph.traversal.FilteringDependencyNodeVisitor;
-import org.codehaus.plexus.archiver.jar.JarArchiver;
 import org.codehaus.plexus.util.IOUtil;
 import org.codehaus.plexus.util.WriterFactory;
+import org.springframework.boot.loader.Launcher;
 
 import cn.weforward.buildplugin.RevisionControl;
+import cn.weforward.buildplugin.UploadProgressBar;
+import cn.weforward.buildplugin.util.BuildCache;
+import cn.weforward.buildplugin.util.BuildFingerprint;
+import cn.weforward.buildplugin.util.DigestCache;
+import cn.weforward.buildplugin.util.DirectoryBuildCache;
 import cn.weforward.buildplugin.util.DistUtil;
+import cn.weforward.buildplugin.util.FileSelector;
 import cn.weforward.buildplugin.util.FileUtil;
+import cn.weforward.buildplugin.util.HttpBuildCache;
+import cn.weforward.buildplugin.util.JarMinimizer;
+import cn.weforward.buildplugin.util.JarPackager;
 import cn.weforward.buildplugin.util.JarUtil;
+import cn.weforward.buildplugin.util.JarWriter;
+import cn.weforward.buildplugin.util.ResumableUploader;
 import cn.weforward.buildplugin.util.StringUtil;
 import cn.weforward.buildplugin.util.VersionUtil;
 
@@ -68,6 +95,8 @@ import cn.weforward.buildplugin.util.VersionUtil;
 public abstract class AbstractBuildMojo extends AbstractMojo {
 	/** 默认主版本 */
 	private static final String DEFAULT_MAIN_VERSION = "1";
+	/** 可重现打包时无法取得提交时间的默认条目时间，1980-02-01 00:00:00 UTC */
+	private static final long DEFAULT_REPRODUCIBLE_TIME = 318211200000L;
 	/** 依赖构建者 */
 	@Component(hint = "default")
 	protected DependencyGraphBuilder m_DependencyGraphBuilder;
@@ -104,6 +133,69 @@ public abstract class AbstractBuildMojo extends AbstractMojo {
 	/** 自定义的项目名 */
 	@Parameter
 	protected String artifactId;
+	/** 打包时的压缩线程数，默认为cpu核数 */
+	@Parameter(defaultValue = "${packageThreads}")
+	protected int packageThreads;
+	/** 压缩级别，0-9，-1为默认级别 */
+	@Parameter(defaultValue = "${compressLevel}")
+	protected int compressLevel = -1;
+	/** 额外直接存储（不压缩）的条目，如**&#47;*.dat，嵌套jar包与常见的已压缩媒体文件默认直接存储 */
+	@Parameter
+	protected String[] storedIncludes;
+	/** 不直接存储（要压缩）的条目，用于排除默认直接存储的条目 */
+	@Parameter
+	protected String[] storedExcludes;
+	/** 是否增量打包，复用上一次jar包(.original)中未变化条目的压缩数据 */
+	@Parameter(defaultValue = "${incremental}")
+	protected boolean incremental;
+	/** fatjar是否分层，依赖、快照依赖、内部模块与应用类分开存放并生成分层索引 */
+	@Parameter(defaultValue = "${layered}")
+	protected boolean layered;
+	/**
+	 * fatjar中的依赖包是否按内存页（4KB）对齐存放，打包后会检查对齐。只对能直接映射嵌套jar包的加载器有用，
+	 * 打入的spring-boot-loader 1.5用RandomAccessFile读取嵌套的jar包，从不映射，对它没有运行时的效果
+	 */
+	@Parameter(defaultValue = "${alignLibs}")
+	protected boolean alignLibs;
+	/** 分层时作为内部模块的groupId（含其子group），默认为项目的groupId */
+	@Parameter
+	protected String[] internalGroupIds;
+	/** 是否可重现打包，条目排序、使用固定时间且清单中不含构建时间，相同的输入生成相同的jar包 */
+	@Parameter(defaultValue = "${reproducible}")
+	protected boolean reproducible;
+	/** 可重现打包时的条目时间，秒数或ISO-8601格式，默认为最后提交的时间 */
+	@Parameter(defaultValue = "${project.build.outputTimestamp}")
+	protected String outputTimestamp;
+	/** fatjar依赖精简：none不分析，warn只警告，exclude排除未使用与类全部重复的依赖，报告写到&lt;finalName&gt;-prune.txt */
+	@Parameter(defaultValue = "${prune}")
+	protected String prune;
+	/** 依赖精简时一定保留的依赖，groupId:artifactId，可用通配符 */
+	@Parameter
+	protected String[] pruneKeeps;
+	/** 是否依赖外置，依赖包以内容摘要命名放到jar包同级的lib目录，清单的Class-Path指向它们，发布时只上传新的依赖包 */
+	@Parameter(defaultValue = "${thinjar}")
+	protected boolean thinjar;
+	/** fatjar或thinjar是否按可达性精简依赖包，只保留主类与应用类可达的类，报告写到&lt;finalName&gt;-minimize.txt */
+	@Parameter(defaultValue = "${minimize}")
+	protected boolean minimize;
+	/** 精简依赖包时保留的类（反射加载等），如com.foo.**，可用通配符 */
+	@Parameter
+	protected String[] minimizeKeeps;
+	/** 是否检查输入，类文件、源码、依赖与配置都与上次打包时一致且jar包未被改动时跳过打包，指纹记在&lt;finalName&gt;.fingerprint */
+	@Parameter(defaultValue = "${upToDateCheck}")
+	protected boolean upToDateCheck;
+	/** 构建缓存，本地（或共享的）目录或http地址，按类文件、源码、依赖的内容与配置查找，命中时直接取出jar包不再打包 */
+	@Parameter(defaultValue = "${buildCache}")
+	protected String buildCache;
+	/** 目录构建缓存的容量（MB），超出时按最近使用淘汰 */
+	@Parameter(defaultValue = "${buildCacheSize}")
+	protected long buildCacheSize = 10240;
+	/** http构建缓存的用户名 */
+	@Parameter(defaultValue = "${buildCache.username}")
+	protected String buildCacheUsername;
+	/** http构建缓存的密码 */
+	@Parameter(defaultValue = "${buildCache.password}")
+	protected String buildCachePassword;
 
 	/** 输出目录 */
 	@Parameter(defaultValue = "${project.build.directory}", required = true)
@@ -137,6 +229,14 @@ public abstract class AbstractBuildMojo extends AbstractMojo {
 	protected String gitPassword;
 	/** 版本控制组件 */
 	protected RevisionControl m_RC;
+	/** 生成的pom文件 */
+	private File m_GeneratedPom;
+	/** 需要打包的依赖（已精简） */
+	private List<Artifact> m_LibArtifacts;
+	/** 精简前的依赖，计算指纹与打包共用 */
+	private List<Artifact> m_AllLibArtifacts;
+	/** 依赖树的节点，精简时用 */
+	private List<DependencyNode> m_LibNodes;
 	/** 格式化为yyyy-MM-dd HH:mm:ss */
 	private final static SimpleDateFormat FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
@@ -146,6 +246,27 @@ public abstract class AbstractBuildMojo extends AbstractMojo {
 	protected String distUsername;
 	@Parameter(defaultValue = "${dist.password}")
 	protected String distPassword;
+	/** 上传时发送缓冲的低水位（KB），待发送的数据降到此值以下时继续写出 */
+	@Parameter(defaultValue = "${dist.lowWaterMark}")
+	protected int distLowWaterMark = DistUtil.DEFAULT_LOW_WATER_MARK / 1024;
+	/** 上传时发送缓冲的高水位（KB），待发送的数据超过此值时暂停写出，高延迟的链路可调大 */
+	@Parameter(defaultValue = "${dist.highWaterMark}")
+	protected int distHighWaterMark = DistUtil.DEFAULT_HIGH_WATER_MARK / 1024;
+	/** 是否可续传地分块上传，中断后只补传缺少的块，需要发布服务支持 */
+	@Parameter(defaultValue = "${dist.resumable}")
+	protected boolean distResumable;
+	/** 分块上传的块大小（KB） */
+	@Parameter(defaultValue = "${dist.chunkSize}")
+	protected int distChunkSize = ResumableUploader.DEFAULT_CHUNK_SIZE / 1024;
+	/** 分块上传的停滞时间（秒），超过此时间没有进展即断开重试 */
+	@Parameter(defaultValue = "${dist.stallTimeout}")
+	protected int distStallTimeout = ResumableUploader.DEFAULT_STALL_TIMEOUT / 1000;
+	/** 上传的连接数，大于1时按块并行上传（同时使用分块上传），在高延迟的链路上能用满带宽 */
+	@Parameter(defaultValue = "${dist.connections}")
+	protected int distConnections = 1;
+	/** 上传前是否先预检内容摘要，发布服务已有相同内容时只关联到本次的标签而不再上传，摘要在打包时顺带算好；需发布服务支持预检，默认关闭 */
+	@Parameter(defaultValue = "${dist.dedup}")
+	protected boolean distDedup;
 	/** artifact工厂 */
 	@Component
 	protected ArtifactFactory m_ArtifactFactory;
@@ -252,6 +373,49 @@ public abstract class AbstractBuildMojo extends AbstractMojo {
 		return "honintech (c) " + cal.get(Calendar.YEAR);
 	}
 
+	/**
+	 * 可重现打包时的条目时间
+	 * 
+	 * @return 毫秒时间
+	 * @throws MojoFailureException mojo异常
+	 */
+	protected long getReproducibleTime() throws MojoFailureException {
+		if (!StringUtil.isEmpty(outputTimestamp)) {
+			String v = outputTimestamp.trim();
+			try {
+				if (v.matches("\\d+")) {
+					return Long.parseLong(v) * 1000;
+				}
+				return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX").parse(v).getTime();
+			} catch (ParseException | NumberFormatException e) {
+				throw new MojoFailureException("outputTimestamp格式不正确:" + v, e);
+			}
+		}
+		long time = getRC().getCommitTime();
+		return time > 0 ? time : DEFAULT_REPRODUCIBLE_TIME;
+	}
+
+	/**
+	 * 创建打包引擎
+	 * 
+	 * @param jarFile   目标文件
+	 * @param original  上一次的jar包
+	 * @param timestamp 固定的条目时间，小于0表示不固定
+	 * @return 打包引擎
+	 */
+	private JarPackager newPackager(File jarFile, File original, long timestamp) {
+		JarPackager packager = new JarPackager(jarFile);
+		packager.setThreads(packageThreads);
+		packager.setLevel(compressLevel);
+		packager.getPolicy().setIncludes(storedIncludes);
+		packager.getPolicy().setExcludes(storedExcludes);
+		packager.setTimestamp(timestamp);
+		if (incremental) {
+			packager.setPrevious(original);
+		}
+		return packager;
+	}
+
 	/**
 	 * 获取版本控制器
 	 * 
@@ -300,54 +464,421 @@ public abstract class AbstractBuildMojo extends AbstractMojo {
 	 * @throws MojoFailureException mojo异常
 	 */
 	protected void createJar(String version) throws MojoFailureException {
-		Map<String, String> map = new HashMap<String, String>();
+		final long timestamp = reproducible ? getReproducibleTime() : -1;
+		final Map<String, String> map = new LinkedHashMap<String, String>();
 		map.put("Implementation-Version", version);
 		map.put("Main-Version", getMainVersion());
-		map.put("Copyright", getCopyright());
-		map.put("Built-Date", format(new Date()));
+		if (reproducible) {
+			Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+			cal.setTimeInMillis(timestamp);
+			map.put("Copyright", "honintech (c) " + cal.get(Calendar.YEAR));
+		} else {
+			map.put("Copyright", getCopyright());
+			map.put("Built-Date", format(new Date()));
+		}
 		if (null != mainClass) {
 			map.put("Main-Class", mainClass);
 		}
+		final File jarFile = getJarFile(outputDirectory, finalName, "");
+		final File sourceJarFile = getJarFile(outputDirectory, finalName, "sources");
+		final List<File> outputs = new ArrayList<File>();
+		outputs.add(jarFile);
+		if (withSource && !fatjar) {// fatjar不带源码
+			outputs.add(sourceJarFile);
+		}
+		File fingerprintFile = new File(outputDirectory, finalName + ".fingerprint");
+		BuildFingerprint fingerprint = null;
+		if (upToDateCheck) {
+			fingerprint = getFingerprint(map, timestamp, false);
+			String reason;
+			try {
+				reason = fingerprint.check(fingerprintFile);
+			} catch (IOException e) {
+				reason = "读取指纹失败:" + e.getMessage();
+			}
+			if (null == reason) {
+				getLog().info("输入未变化，跳过打包 " + jarFile.getName());
+				getLog().info("Build 版本 " + version);
+				return;
+			}
+			getLog().info("需要打包，" + reason);
+		}
+		// 打包失败时不能留下旧的指纹
+		fingerprintFile.delete();
+		BuildCache cache = getBuildCache();
+		String cacheKey = null;
+		if (null != cache) {
+			cacheKey = getFingerprint(map, timestamp, true).getKey();
+			boolean hit;
+			try {
+				hit = cache.restore(cacheKey, outputDirectory);
+			} catch (IOException e) {
+				getLog().warn("读取构建缓存失败:" + e.getMessage());
+				hit = false;
+			}
+			if (hit) {
+				getLog().info("构建缓存命中，跳过打包 " + jarFile.getName());
+				saveFingerprint(fingerprint, fingerprintFile, outputs);
+				getLog().info("Build 版本 " + version);
+				return;
+			}
+		}
+		// 主包、源码包与pom读取的输入互不相关，同时生成，共用一个压缩线程池
+		final ExecutorService compressor = JarPackager.newExecutor(packageThreads);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					createMainJar(jarFile, new LinkedHashMap<String, String>(map), timestamp, compressor);
+					return null;
+				}
+			}));
+			if (outputs.contains(sourceJarFile)) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						createSourceJar(sourceJarFile, new LinkedHashMap<String, String>(map), timestamp,
+								compressor);
+						return null;
+					}
+				}));
+			}
+			if (generatePomFile) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						getGeneratedPomFile();
+						return null;
+					}
+				}));
+			}
+			MojoFailureException error = null;
+			for (Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (null == error) {
+						error = toFailure(e.getCause());
+						// 其中一个失败了，其它的也不用做了
+						for (Future<?> other : futures) {
+							other.cancel(true);
+						}
+					}
+				} catch (CancellationException e) {
+					// 被取消的，忽略
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					if (null == error) {
+						error = new MojoFailureException("生成jar包被中断", e);
+					}
+					for (Future<?> other : futures) {
+						other.cancel(true);
+					}
+				}
+			}
+			if (null != error) {
+				// 等待被取消的任务退出后再清理已生成的部分
+				executor.shutdown();
+				try {
+					executor.awaitTermination(1, TimeUnit.MINUTES);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				for (File f : outputs) {
+					if (f.exists() && !f.delete()) {
+						getLog().warn("删除未完成的文件失败:" + f);
+					}
+				}
+				throw error;
+			}
+		} finally {
+			executor.shutdownNow();
+			compressor.shutdownNow();
+		}
+		saveFingerprint(fingerprint, fingerprintFile, outputs);
+		if (null != cacheKey) {
+			try {
+				cache.store(cacheKey, outputDirectory, getCacheNames(outputs));
+			} catch (IOException e) {
+				getLog().warn("存入构建缓存失败:" + e.getMessage());
+			}
+		}
+		getLog().info("Build 版本 " + version);
+	}
+
+	/**
+	 * 构建缓存
+	 * 
+	 * @return 没有配置时返回null
+	 */
+	protected BuildCache getBuildCache() {
+		if (StringUtil.isEmpty(buildCache)) {
+			return null;
+		}
+		String v = buildCache.trim();
+		if (v.startsWith("http://") || v.startsWith("https://")) {
+			return new HttpBuildCache(v, buildCacheUsername, buildCachePassword);
+		}
+		return new DirectoryBuildCache(new File(v).getAbsoluteFile(), buildCacheSize * 1024 * 1024);
+	}
+
+	/* 记录生成的文件并保存指纹 */
+	private void saveFingerprint(BuildFingerprint fingerprint, File fingerprintFile, List<File> outputs) {
+		if (null == fingerprint) {
+			return;
+		}
+		for (File f : outputs) {
+			fingerprint.addOutput(f);
+		}
+		if (thinjar) {
+			fingerprint.addOutput(getThinLibDirectory());
+		}
+		try {
+			fingerprint.save(fingerprintFile);
+		} catch (IOException e) {
+			getLog().warn("保存指纹失败:" + e.getMessage());
+		}
+	}
+
+	/* 存入构建缓存的文件，相对输出目录，依赖外置时还有Class-Path中的依赖包 */
+	private List<String> getCacheNames(List<File> outputs) throws IOException {
+		List<String> names = new ArrayList<String>();
+		for (File f : outputs) {
+			names.add(f.getName());
+		}
+		if (thinjar) {
+			String classpath;
+			try (JarFile jf = new JarFile(outputs.get(0))) {
+				Manifest mf = jf.getManifest();
+				classpath = null == mf ? null : mf.getMainAttributes().getValue("Class-Path");
+			}
+			if (!StringUtil.isEmpty(classpath)) {
+				for (String path : classpath.trim().split("\\s+")) {
+					names.add(path);
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * 本次打包的输入指纹，构建时间不影响
+	 * 
+	 * @param map       清单
+	 * @param timestamp 固定的条目时间
+	 * @param content   是否按内容计算（用于构建缓存的键），否则按路径、大小与修改时间
+	 * @return 指纹
+	 * @throws MojoFailureException mojo异常
+	 */
+	private BuildFingerprint getFingerprint(Map<String, String> map, long timestamp, boolean content)
+			throws MojoFailureException {
+		BuildFingerprint fingerprint = new BuildFingerprint();
+		for (Map.Entry<String, String> e : map.entrySet()) {
+			if (!"Built-Date".equals(e.getKey())) {
+				fingerprint.putConfig("manifest." + e.getKey(), e.getValue());
+			}
+		}
+		fingerprint.putConfig("timestamp", timestamp);
+		fingerprint.putConfig("fatjar", fatjar);
+		fingerprint.putConfig("thinjar", thinjar);
+		fingerprint.putConfig("layered", layered);
+		fingerprint.putConfig("withSource", withSource);
+		fingerprint.putConfig("includes", includes);
+		fingerprint.putConfig("excludes", excludes);
+		fingerprint.putConfig("compressLevel", compressLevel);
+		fingerprint.putConfig("storedIncludes", storedIncludes);
+		fingerprint.putConfig("storedExcludes", storedExcludes);
+		fingerprint.putConfig("alignLibs", alignLibs);
+		fingerprint.putConfig("internalGroupIds", internalGroupIds);
+		fingerprint.putConfig("prune", prune);
+		fingerprint.putConfig("pruneKeeps", pruneKeeps);
+		fingerprint.putConfig("minimize", minimize);
+		fingerprint.putConfig("minimizeKeeps", minimizeKeeps);
+		// 插件与打入的加载器也是输入，升级后不复用旧版本生成的jar包
+		DigestCache codeCache = getDigestCache();
+		try {
+			fingerprint.putCodeSource("plugin", AbstractBuildMojo.class, codeCache);
+			if (fatjar) {
+				fingerprint.putCodeSource("loader", Launcher.class, codeCache);
+			}
+			codeCache.save();
+		} catch (IOException e) {
+			throw new MojoFailureException("计算插件的摘要失败:" + e.getMessage(), e);
+		}
+		FileSelector selector = FileSelector.compile(getIncludes(), getExcludes());
+		if (!content) {
+			fingerprint.putDirectory("classes", classDirectory, selector);
+			if (withSource && !fatjar) {
+				fingerprint.putDirectory("sources", sourceDirectory, selector);
+			}
+			if (fatjar || thinjar) {
+				fingerprint.putFiles("libs", getUnprunedLibFiles());
+			}
+			return fingerprint;
+		}
+		try {
+			fingerprint.putDirectoryContents("classes", classDirectory, selector);
+			if (withSource && !fatjar) {
+				fingerprint.putDirectoryContents("sources", sourceDirectory, selector);
+			}
+			if (fatjar || thinjar) {
+				DigestCache digestCache = getDigestCache();
+				fingerprint.putFileContents("libs", getUnprunedLibFiles(), digestCache);
+				digestCache.save();
+			}
+		} catch (IOException e) {
+			throw new MojoFailureException("计算构建缓存的键失败:" + e.getMessage(), e);
+		}
+		return fingerprint;
+	}
+
+	/* 生成主包 */
+	private void createMainJar(File jarFile, Map<String, String> map, long timestamp, ExecutorService compressor)
+			throws MojoFailureException {
 		try {
-			File jarFile = getJarFile(outputDirectory, finalName, "");
+			File original = new File(jarFile.getAbsoluteFile() + ".original");
 			if (jarFile.exists()) {
-				File original = new File(jarFile.getAbsoluteFile() + ".original");
-				if (original.exists()) {
+				if (original.exists() && !original.delete()) {
+					original.setWritable(true);
 					original.delete();
 				}
 				jarFile.renameTo(original);
 			}
-			JarArchiver archiver = new JarArchiver();
-			archiver.setDestFile(jarFile);
+			JarPackager packager = newPackager(jarFile, original, timestamp);
+			packager.setExecutor(compressor);
+			packager.setDestDigest(distDedup && !StringUtil.isEmpty(distHubUrl));
+			DigestCache digestCache = null;
 			if (fatjar) {
-				JarUtil.packageSpringBootJar(archiver, classDirectory, map, getLibFiles(), getIncludes(),
+				digestCache = getDigestCache();
+				packager.setDigestCache(digestCache);
+				if (alignLibs) {
+					packager.setAlignment(JarWriter.PAGE_SIZE, JarUtil.BOOT_INF_LIB);
+				}
+				if (layered) {
+					Map<String, List<File>> layers = getLibLayers();
+					if (minimize) {
+						List<File> all = new ArrayList<File>();
+						for (List<File> libs : layers.values()) {
+							all.addAll(libs);
+						}
+						Map<File, File> minimized = minimize(all);
+						for (Map.Entry<String, List<File>> e : layers.entrySet()) {
+							List<File> libs = new ArrayList<File>(e.getValue().size());
+							for (File f : e.getValue()) {
+								libs.add(minimized.get(f));
+							}
+							e.setValue(libs);
+						}
+					}
+					JarUtil.packageLayeredSpringBootJar(packager, classDirectory, map, layers, getIncludes(),
+							getExcludes());
+				} else {
+					List<File> libs = getLibFiles();
+					if (minimize) {
+						libs = new ArrayList<File>(minimize(libs).values());
+					}
+					JarUtil.packageSpringBootJar(packager, classDirectory, map, libs, getIncludes(), getExcludes());
+				}
+			} else if (thinjar) {
+				digestCache = getDigestCache();
+				List<File> libs = getLibFiles();
+				if (minimize) {
+					libs = new ArrayList<File>(minimize(libs).values());
+				}
+				File libdir = getThinLibDirectory();
+				for (File f : libs) {
+					if (libdir.equals(f.getAbsoluteFile().getParentFile())) {
+						throw new MojoFailureException("依赖外置的目录" + libdir + "不能是依赖包所在的目录");
+					}
+				}
+				JarUtil.packageThinJar(packager, classDirectory, map, libs, libdir, digestCache, getIncludes(),
 						getExcludes());
 			} else {
-				JarUtil.packageJar(archiver, classDirectory, map, getIncludes(), getExcludes());
+				JarUtil.packageJar(packager, classDirectory, map, getIncludes(), getExcludes());
+			}
+			packager.createArchive();
+			if (fatjar && alignLibs) {
+				List<String> unaligned = JarUtil.checkAlignment(jarFile, JarWriter.PAGE_SIZE, JarUtil.BOOT_INF_LIB);
+				if (!unaligned.isEmpty()) {
+					throw new MojoFailureException("依赖包没有对齐:" + unaligned);
+				}
+			}
+			if (null != packager.getDestDigest()) {
+				// 记下打包时算好的摘要，上传前预检时不必再读一遍
+				if (null == digestCache) {
+					digestCache = getDigestCache();
+				}
+				digestCache.put(jarFile, packager.getDestDigest());
+			}
+			if (null != digestCache) {
+				try {
+					digestCache.save();
+				} catch (IOException e) {
+					getLog().warn("保存文件摘要缓存失败:" + e.getMessage());
+				}
+			}
+			if (incremental) {
+				getLog().info("增量打包，复用" + packager.getReusedCount() + "个条目");
 			}
-			archiver.createArchive();
 		} catch (Throwable e) {
 			throw new MojoFailureException("生成jar包失败:" + e.getMessage(), e);
 		}
-		if (withSource && !fatjar) {// fatjar不带源码
-			File sourceJarFile = getJarFile(outputDirectory, finalName, "sources");
-			if (sourceJarFile.exists()) {
-				File original = new File(sourceJarFile.getAbsoluteFile() + ".original");
-				if (original.exists()) {
-					original.delete();
-				}
-				sourceJarFile.renameTo(original);
-			}
-			JarArchiver sourceArchiver = new JarArchiver();
-			sourceArchiver.setDestFile(sourceJarFile);
-			try {
-				JarUtil.packageJar(sourceArchiver, sourceDirectory, map, getIncludes(), getExcludes());
-				sourceArchiver.createArchive();
-			} catch (Exception e) {
-				throw new MojoFailureException("生成source包异常:" + e.getMessage(), e);
+	}
+
+	/* 按可达性精简依赖包 */
+	private Map<File, File> minimize(List<File> libs) throws IOException {
+		JarMinimizer minimizer = new JarMinimizer(classDirectory, new File(outputDirectory, "minimized"));
+		minimizer.setMainClass(mainClass);
+		minimizer.setKeeps(minimizeKeeps);
+		Map<File, File> result = minimizer.minimize(libs);
+		minimizer.writeReport(new File(outputDirectory, finalName + "-minimize.txt"));
+		getLog().info("精简依赖包节省" + (minimizer.getSavedBytes() >> 10) + "KB");
+		return result;
+	}
+
+	/* 生成源码包 */
+	private void createSourceJar(File sourceJarFile, Map<String, String> map, long timestamp,
+			ExecutorService compressor) throws MojoFailureException {
+		File original = new File(sourceJarFile.getAbsoluteFile() + ".original");
+		if (sourceJarFile.exists()) {
+			if (original.exists() && !original.delete()) {
+				// 可能是从构建缓存硬链接的只读文件
+				original.setWritable(true);
+				original.delete();
 			}
+			sourceJarFile.renameTo(original);
 		}
-		getLog().info("Build 版本 " + version);
+		JarPackager sourcePackager = newPackager(sourceJarFile, original, timestamp);
+		sourcePackager.setExecutor(compressor);
+		try {
+			JarUtil.packageJar(sourcePackager, sourceDirectory, map, getIncludes(), getExcludes());
+			sourcePackager.createArchive();
+		} catch (Exception e) {
+			throw new MojoFailureException("生成source包异常:" + e.getMessage(), e);
+		}
+	}
+
+	/* 转换任务的异常 */
+	private static MojoFailureException toFailure(Throwable e) {
+		if (e instanceof MojoFailureException) {
+			return (MojoFailureException) e;
+		}
+		return new MojoFailureException(e.getMessage(), e);
+	}
+
+	/**
+	 * 依赖包的摘要缓存，放在本地库下供同一机器上的所有构建共用
+	 * 
+	 * @return 缓存
+	 */
+	protected DigestCache getDigestCache() {
+		File dir = new File(localRepository.getBasedir(), ".weforward");
+		return DigestCache.open(new File(dir, "digest.cache"));
 	}
 
 	/**
@@ -413,9 +944,108 @@ public abstract class AbstractBuildMojo extends AbstractMojo {
 	 * @return
 	 * @throws MojoFailureException
 	 */
-	private List<File> getLibFiles() throws MojoFailureException {
+	protected List<File> getLibFiles() throws MojoFailureException {
+		List<File> list = getLibDirectoryFiles();
+		if (null != list) {
+			return list;
+		}
 		List<File> libs = new ArrayList<>();
-		for (DependencyNode node : getDependencys()) {
+		for (Artifact a : getLibArtifacts()) {
+			libs.add(getLibFile(a));
+		}
+		return libs;
+	}
+
+	/**
+	 * 精简前的lib文件，用于计算指纹：精简的结果只取决于类、依赖包与精简的配置，它们都已在指纹中，检查是否需要打包时不必做精简分析
+	 * 
+	 * @return lib文件
+	 * @throws MojoFailureException mojo异常
+	 */
+	private List<File> getUnprunedLibFiles() throws MojoFailureException {
+		List<File> list = getLibDirectoryFiles();
+		if (null != list) {
+			return list;
+		}
+		List<File> libs = new ArrayList<>();
+		for (Artifact a : getAllLibArtifacts()) {
+			libs.add(getLibFile(a));
+		}
+		return libs;
+	}
+
+	/**
+	 * 按分层归类的lib文件
+	 * 
+	 * @return 层名与lib文件，按层的顺序
+	 * @throws MojoFailureException
+	 */
+	private Map<String, List<File>> getLibLayers() throws MojoFailureException {
+		Map<String, List<File>> layers = new LinkedHashMap<String, List<File>>();
+		List<File> dependencies = new ArrayList<File>();
+		List<File> internals = new ArrayList<File>();
+		List<File> snapshots = new ArrayList<File>();
+		layers.put(JarUtil.LAYER_DEPENDENCIES, dependencies);
+		layers.put(JarUtil.LAYER_INTERNAL_DEPENDENCIES, internals);
+		layers.put(JarUtil.LAYER_SNAPSHOT_DEPENDENCIES, snapshots);
+		List<File> list = getLibDirectoryFiles();
+		if (null != list) {
+			dependencies.addAll(list);
+			return layers;
+		}
+		String[] groupIds = null == internalGroupIds ? new String[] { project.getGroupId() } : internalGroupIds;
+		for (Artifact a : getLibArtifacts()) {
+			File f = getLibFile(a);
+			if (a.isSnapshot()) {
+				snapshots.add(f);
+			} else if (isInternal(a.getGroupId(), groupIds)) {
+				internals.add(f);
+			} else {
+				dependencies.add(f);
+			}
+		}
+		return layers;
+	}
+
+	private static boolean isInternal(String groupId, String[] groupIds) {
+		for (String g : groupIds) {
+			if (StringUtil.isEmpty(g)) {
+				continue;
+			}
+			if (StringUtil.eq(groupId, g) || groupId.startsWith(g + ".")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 需要打包的依赖
+	 * 
+	 * @return
+	 * @throws MojoFailureException
+	 */
+	private List<Artifact> getLibArtifacts() throws MojoFailureException {
+		if (null != m_LibArtifacts) {
+			return m_LibArtifacts;
+		}
+		m_LibArtifacts = prune(m_LibNodes, getAllLibArtifacts());
+		return m_LibArtifacts;
+	}
+
+	/**
+	 * 精简前需要打包的依赖
+	 * 
+	 * @return
+	 * @throws MojoFailureException
+	 */
+	private List<Artifact> getAllLibArtifacts() throws MojoFailureException {
+		if (null != m_AllLibArtifacts) {
+			return m_AllLibArtifacts;
+		}
+		List<Artifact> artifacts = new ArrayList<>();
+		List<DependencyNode> nodes = getDependencys();
+		for (DependencyNode node : nodes) {
 			// * compile，缺省值，适用于所有阶段，会随着项目一起发布。
 			// * provided，类似compile，期望JDK、容器或使用者会提供这个依赖。如servlet.jar。
 			// * runtime，只在运行时使用，如JDBC驱动，适用运行和测试阶段。
@@ -428,19 +1058,70 @@ public abstract class AbstractBuildMojo extends AbstractMojo {
 			if (!StringUtil.eq(a.getType(), "jar")) {
 				throw new MojoFailureException("暂不支持" + a.getType() + "类型的依赖导出," + a);
 			}
-			File f = new File(localRepository.getBasedir(), localRepository.pathOf(a));
-			libs.add(f);
+			artifacts.add(a);
 		}
+		m_LibNodes = nodes;
+		m_AllLibArtifacts = artifacts;
+		return m_AllLibArtifacts;
+	}
+
+	/* 精简依赖 */
+	private List<Artifact> prune(List<DependencyNode> nodes, List<Artifact> artifacts) throws MojoFailureException {
+		String mode = StringUtil.isEmpty(prune) ? DependencyPruner.MODE_NONE : prune;
+		if (StringUtil.eq(mode, DependencyPruner.MODE_NONE)) {
+			return artifacts;
+		}
+		boolean exclude = StringUtil.eq(mode, DependencyPruner.MODE_EXCLUDE);
+		if (!exclude && !StringUtil.eq(mode, DependencyPruner.MODE_WARN)) {
+			throw new MojoFailureException("不支持的依赖精简模式:" + prune);
+		}
+		Map<Artifact, File> libs = new LinkedHashMap<Artifact, File>();
+		for (Artifact a : artifacts) {
+			libs.put(a, getLibFile(a));
+		}
+		DependencyPruner pruner = new DependencyPruner(classDirectory, getLog());
+		pruner.setKeeps(pruneKeeps);
+		DependencyPruner.Result result;
+		try {
+			result = pruner.analyze(nodes, libs);
+			result.write(new File(outputDirectory, finalName + "-prune.txt"), exclude);
+		} catch (IOException e) {
+			throw new MojoFailureException("分析依赖失败:" + e.getMessage(), e);
+		}
+		result.log(getLog(), exclude);
+		if (!exclude) {
+			return artifacts;
+		}
+		Set<Artifact> removable = result.getRemovable();
+		List<Artifact> list = new ArrayList<Artifact>(artifacts.size());
+		for (Artifact a : artifacts) {
+			if (!removable.contains(a)) {
+				list.add(a);
+			}
+		}
+		return list;
+	}
+
+	private File getLibFile(Artifact a) {
+		return new File(localRepository.getBasedir(), localRepository.pathOf(a));
+	}
+
+	/**
+	 * 外部依赖目录下的jar包
+	 * 
+	 * @return jar包，未配置外部依赖目录或目录为空时返回null
+	 */
+	private List<File> getLibDirectoryFiles() {
 		if (StringUtil.isEmpty(libDirectory)) {
-			return libs;
+			return null;
 		}
 		File dir = new File(FileUtil.getAbsolutePath(libDirectory, null));
 		if (!dir.exists() || !dir.isDirectory()) {
-			return libs;
+			return null;
 		}
 		File[] fs = dir.listFiles();
 		if (null == fs || 0 == fs.length) {
-			return libs;
+			return null;
 		}
 		List<File> list = new ArrayList<File>();
 		for (File f : fs) {
@@ -453,14 +1134,129 @@ public abstract class AbstractBuildMojo extends AbstractMojo {
 	}
 
 	protected void dist(File file, String tag) throws MojoFailureException {
-		String url = distHubUrl + project.getName() + "/" + tag + "/";
+		DigestCache digestCache = distDedup ? getDigestCache() : null;
 		try {
-			DistUtil.uploadFile(url, file, distUsername, distPassword, new MojoLogUploadProgressBar(getLog()));
-		} catch (IOException | InterruptedException e) {
-			throw new MojoFailureException("上传文件异常:" + e.getMessage(), e);
+			if (thinjar) {
+				distLibs(file, digestCache);
+			}
+			String url = distHubUrl + project.getName() + "/" + tag + "/";
+			try {
+				upload(url, file, new MojoLogUploadProgressBar(getLog()), digestCache);
+			} catch (IOException | InterruptedException e) {
+				throw new MojoFailureException("上传文件异常:" + e.getMessage(), e);
+			}
+		} finally {
+			if (null != digestCache) {
+				try {
+					digestCache.save();
+				} catch (IOException e) {
+					getLog().warn("保存文件摘要缓存失败:" + e.getMessage());
+				}
+			}
 		}
 	}
 
+	/* 按配置的方式上传文件，发布服务已有相同内容时只关联，返回是否只做了关联 */
+	private boolean upload(String url, File file, UploadProgressBar progressBar, DigestCache digestCache)
+			throws IOException, InterruptedException {
+		if (null != digestCache && link(url, file, digestCache)) {
+			return true;
+		}
+		if (distResumable || distConnections > 1) {
+			DistUtil.uploadFileResumable(url, file, distUsername, distPassword, progressBar, distChunkSize * 1024,
+					distStallTimeout * 1000, distConnections);
+		} else {
+			DistUtil.uploadFile(url, file, distUsername, distPassword, progressBar, distLowWaterMark * 1024,
+					distHighWaterMark * 1024);
+		}
+		return false;
+	}
+
+	/* 预检发布服务是否已有相同内容，摘要优先取打包时记在摘要缓存中的，预检失败时按需要上传处理 */
+	private boolean link(String url, File file, DigestCache digestCache) {
+		String sha256;
+		try {
+			sha256 = digestCache.digest(file).getSha256();
+		} catch (IOException e) {
+			getLog().warn("计算" + file.getName() + "的摘要失败:" + e.getMessage());
+			return false;
+		}
+		try {
+			if (DistUtil.linkExisting(url, file, sha256, distUsername, distPassword)) {
+				getLog().info("发布服务已有相同内容，不再上传 " + file.getName());
+				return true;
+			}
+		} catch (IOException e) {
+			getLog().warn("预检" + file.getName() + "失败，直接上传:" + e.getMessage());
+		}
+		return false;
+	}
+
+	/* 上传jar包Class-Path中还没上传过的依赖包，依赖包以内容摘要命名，上传过的记录在本地库中 */
+	private void distLibs(File jar, DigestCache digestCache) throws MojoFailureException {
+		String url = distHubUrl + project.getName() + "/" + getThinLibDirectory().getName() + "/";
+		String classpath;
+		try (JarFile jf = new JarFile(jar)) {
+			Manifest mf = jf.getManifest();
+			classpath = null == mf ? null : mf.getMainAttributes().getValue("Class-Path");
+		} catch (IOException e) {
+			throw new MojoFailureException("读取" + jar + "失败:" + e.getMessage(), e);
+		}
+		if (StringUtil.isEmpty(classpath)) {
+			return;
+		}
+		File record = new File(new File(localRepository.getBasedir(), ".weforward"), "dist-libs.txt");
+		Set<String> uploaded = new HashSet<String>();
+		if (record.isFile()) {
+			try {
+				uploaded.addAll(Files.readAllLines(record.toPath(), Charset.forName("UTF-8")));
+			} catch (IOException e) {
+				getLog().warn("读取" + record + "失败:" + e.getMessage());
+			}
+		}
+		int skip = 0;
+		for (String path : classpath.trim().split("\\s+")) {
+			File lib = new File(jar.getParentFile(), path);
+			String key = url + lib.getName();
+			if (uploaded.contains(key)) {
+				skip++;
+				continue;
+			}
+			getLog().info("Dist " + path);
+			final int[] code = new int[] { -1 };
+			boolean linked;
+			try {
+				linked = upload(url, lib, new MojoLogUploadProgressBar(getLog()) {
+					@Override
+					public void response(int c, String message) {
+						code[0] = c;
+						super.response(c, message);
+					}
+				}, digestCache);
+			} catch (IOException | InterruptedException e) {
+				throw new MojoFailureException("上传文件异常:" + e.getMessage(), e);
+			}
+			if (!linked && code[0] != 200) {
+				throw new MojoFailureException("上传" + lib.getName() + "失败:" + code[0]);
+			}
+			try {
+				FileUtil.sureDir(record);
+				Files.write(record.toPath(), (key + "\n").getBytes(Charset.forName("UTF-8")),
+						StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			} catch (IOException e) {
+				getLog().warn("记录已上传的依赖包失败:" + e.getMessage());
+			}
+		}
+		if (skip > 0) {
+			getLog().info("已上传过的依赖包" + skip + "个，不再上传");
+		}
+	}
+
+	/* 依赖外置时的依赖包目录 */
+	private File getThinLibDirectory() {
+		return new File(outputDirectory, "lib").getAbsoluteFile();
+	}
+
 	/**
 	 * 安装项目
 	 * 
@@ -482,7 +1278,7 @@ public abstract class AbstractBuildMojo extends AbstractMojo {
 					if (generatePomFile) {
 						myArtifact = m_ArtifactFactory.createArtifactWithClassifier(artifact.getGroupId(),
 								artifact.getArtifactId(), artifact.getVersion(), packaging, null);
-						myArtifact.addMetadata(new ProjectArtifactMetadata(artifact, generatePomFile()));
+						myArtifact.addMetadata(new ProjectArtifactMetadata(artifact, getGeneratedPomFile()));
 					} else {
 						artifact.addMetadata(new ProjectArtifactMetadata(artifact, pom));
 						myArtifact = artifact;
@@ -539,7 +1335,7 @@ public abstract class AbstractBuildMojo extends AbstractMojo {
 					if (generatePomFile) {
 						myArtifact = m_ArtifactFactory.createArtifactWithClassifier(artifact.getGroupId(),
 								getArtifactId(), artifact.getVersion(), packaging, null);
-						myArtifact.addMetadata(new ProjectArtifactMetadata(artifact, generatePomFile()));
+						myArtifact.addMetadata(new ProjectArtifactMetadata(artifact, getGeneratedPomFile()));
 					} else {
 						artifact.addMetadata(new ProjectArtifactMetadata(artifact, pom));
 						myArtifact = artifact;
@@ -560,6 +1356,14 @@ public abstract class AbstractBuildMojo extends AbstractMojo {
 
 	}
 
+	/* 生成的pom文件，只生成一次 */
+	private synchronized File getGeneratedPomFile() throws MojoExecutionException {
+		if (null == m_GeneratedPom || !m_GeneratedPom.isFile()) {
+			m_GeneratedPom = generatePomFile();
+		}
+		return m_GeneratedPom;
+	}
+
 	private File generatePomFile() throws MojoExecutionException {
 		Model model = new Model();
 		model.setModelVersion("4.0.0");
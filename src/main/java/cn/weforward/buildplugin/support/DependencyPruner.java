@@ -0,0 +1,406 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.support;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.shared.dependency.analyzer.asm.ASMDependencyAnalyzer;
+import org.apache.maven.shared.dependency.graph.DependencyNode;
+import org.codehaus.plexus.util.SelectorUtils;
+
+import cn.weforward.buildplugin.util.ClassReferences;
+import cn.weforward.buildplugin.util.FileUtil;
+import cn.weforward.buildplugin.util.JarDirectory;
+import cn.weforward.buildplugin.util.StringUtil;
+
+/**
+ * fatjar依赖精简
+ * <p>
+ * 找出主代码没有引用的compile依赖（连同只被它们带进来的传递依赖），以及类与资源完全被排在前面的依赖包覆盖的重复依赖。
+ * 资源按名称与crc比较：META-INF/services等会被合并读取（getResources），同名但内容不同的资源不算被覆盖。
+ * 主代码的引用用maven-dependency-analyzer分析，依赖包之间的引用只读常量池。runtime依赖（如JDBC驱动）通常是反射加载的，不作判断
+ *
+ * @author daibo
+ *
+ */
+public class DependencyPruner {
+	/** 模式：不分析 */
+	public static final String MODE_NONE = "none";
+	/** 模式：只警告 */
+	public static final String MODE_WARN = "warn";
+	/** 模式：从依赖包中排除 */
+	public static final String MODE_EXCLUDE = "exclude";
+
+	/** 日志 */
+	private final Log m_Log;
+	/** 主代码的类文件目录 */
+	private final File m_ClassDirectory;
+	/** 保留的依赖，groupId:artifactId，可用通配符 */
+	private String[] m_Keeps;
+	/** 依赖包中的类，缓存 */
+	private final Map<File, Set<String>> m_Classes;
+	/** 依赖包引用的类，缓存 */
+	private final Map<File, Set<String>> m_References;
+	/** 提供服务（META-INF/services或spring.factories）的依赖包 */
+	private final Set<File> m_Providers;
+	/** 依赖包中类以外的资源，“名称@crc”，缓存 */
+	private final Map<File, Set<String>> m_Resources;
+
+	public DependencyPruner(File classDirectory, Log log) {
+		m_ClassDirectory = classDirectory;
+		m_Log = log;
+		m_Classes = new HashMap<File, Set<String>>();
+		m_References = new HashMap<File, Set<String>>();
+		m_Providers = new HashSet<File>();
+		m_Resources = new HashMap<File, Set<String>>();
+	}
+
+	/**
+	 * 设置一定保留的依赖
+	 *
+	 * @param keeps groupId:artifactId，可用通配符
+	 */
+	public void setKeeps(String[] keeps) {
+		m_Keeps = keeps;
+	}
+
+	/**
+	 * 分析依赖
+	 *
+	 * @param nodes 依赖树的节点（不含项目自己）
+	 * @param libs  按顺序打包的依赖及其文件
+	 * @return 分析结果
+	 * @throws IOException IO异常
+	 */
+	public Result analyze(List<DependencyNode> nodes, Map<Artifact, File> libs) throws IOException {
+		Set<String> used = getProjectReferences();
+		Map<Artifact, DependencyNode> nodeOf = new HashMap<Artifact, DependencyNode>();
+		for (DependencyNode node : nodes) {
+			nodeOf.put(node.getArtifact(), node);
+		}
+		// 未被主代码引用的直接依赖，及其下只能经由它们带进来的compile依赖
+		Set<Artifact> removed = new LinkedHashSet<Artifact>();
+		for (Entry<Artifact, File> e : libs.entrySet()) {
+			Artifact a = e.getKey();
+			DependencyNode node = nodeOf.get(a);
+			if (null == node || !isDirect(node) || !isCandidate(a)) {
+				continue;
+			}
+			Set<String> classes = getClasses(e.getValue());
+			if (classes.isEmpty() || intersects(classes, used)) {
+				continue;
+			}
+			removed.add(a);
+			collectChildren(node, libs, removed);
+		}
+		// 通过META-INF/services或spring.factories加载的不会被直接引用
+		for (Artifact a : new ArrayList<Artifact>(removed)) {
+			getClasses(libs.get(a));
+			if (m_Providers.contains(libs.get(a))) {
+				removed.remove(a);
+			}
+		}
+		// 被保留下来的依赖包引用到的要放回，直到没有变化
+		boolean changed = !removed.isEmpty();
+		while (changed) {
+			Set<String> refs = new HashSet<String>(used);
+			for (Entry<Artifact, File> e : libs.entrySet()) {
+				if (!removed.contains(e.getKey())) {
+					refs.addAll(getReferences(e.getValue()));
+				}
+			}
+			changed = false;
+			for (Artifact a : new ArrayList<Artifact>(removed)) {
+				if (intersects(getClasses(libs.get(a)), refs)) {
+					removed.remove(a);
+					changed = true;
+				}
+			}
+		}
+		Result result = new Result();
+		for (Artifact a : removed) {
+			result.m_Unused.put(a, libs.get(a));
+		}
+		// 重复的类，先打包的优先加载
+		Map<String, Artifact> owners = new HashMap<String, Artifact>();
+		Set<String> resources = new HashSet<String>();
+		for (Entry<Artifact, File> e : libs.entrySet()) {
+			Artifact a = e.getKey();
+			if (removed.contains(a)) {
+				continue;
+			}
+			Set<String> classes = getClasses(e.getValue());
+			Set<String> own = m_Resources.get(e.getValue());
+			// 只有前面的依赖包都已有相同的资源时才可能被覆盖
+			boolean covered = resources.containsAll(own);
+			resources.addAll(own);
+			Map<Artifact, Integer> dups = new LinkedHashMap<Artifact, Integer>();
+			for (String c : classes) {
+				Artifact owner = owners.get(c);
+				if (null == owner) {
+					owners.put(c, a);
+					continue;
+				}
+				Integer n = dups.get(owner);
+				dups.put(owner, null == n ? 1 : n + 1);
+			}
+			if (dups.isEmpty()) {
+				continue;
+			}
+			result.m_Duplicates.put(a, dups);
+			int total = 0;
+			for (Integer n : dups.values()) {
+				total += n;
+			}
+			if (total == classes.size() && covered && isCandidate(a)) {
+				// 所有类与资源都已由前面的依赖包提供，不会被加载
+				result.m_Shadowed.put(a, e.getValue());
+			}
+		}
+		return result;
+	}
+
+	/* 主代码引用的类 */
+	private Set<String> getProjectReferences() throws IOException {
+		if (null == m_ClassDirectory || !m_ClassDirectory.isDirectory()) {
+			return Collections.emptySet();
+		}
+		try {
+			Set<String> refs = new HashSet<String>();
+			for (String c : new ASMDependencyAnalyzer().analyze(m_ClassDirectory.toURI().toURL())) {
+				refs.add(c.replace('.', '/'));
+			}
+			return refs;
+		} catch (RuntimeException e) {
+			// ASM不支持的类文件版本
+			m_Log.debug("maven-dependency-analyzer无法分析" + m_ClassDirectory + ":" + e);
+			return ClassReferences.readDirectory(m_ClassDirectory);
+		}
+	}
+
+	/* 依赖包中的类（内部格式），同时记录是否提供服务 */
+	private Set<String> getClasses(File jar) throws IOException {
+		Set<String> classes = m_Classes.get(jar);
+		if (null != classes) {
+			return classes;
+		}
+		classes = new HashSet<String>();
+		Set<String> resources = new HashSet<String>();
+		try (JarDirectory dir = JarDirectory.open(jar)) {
+			for (JarDirectory.Item item : dir.getItems()) {
+				String name = item.getName();
+				if ((name.startsWith("META-INF/services/") && !item.isDirectory())
+						|| name.equals("META-INF/spring.factories")) {
+					m_Providers.add(jar);
+				}
+				if (name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class")) {
+					classes.add(name.substring(0, name.length() - 6));
+				} else if (!item.isDirectory() && !isMetadata(name)) {
+					resources.add(name + "@" + Long.toHexString(item.getCrc()));
+				}
+			}
+		}
+		m_Classes.put(jar, classes);
+		m_Resources.put(jar, resources);
+		return classes;
+	}
+
+	/* 每个依赖包各自带有、不影响运行的描述文件（清单、maven信息、签名、许可说明） */
+	private static boolean isMetadata(String name) {
+		if (!name.startsWith("META-INF/")) {
+			return false;
+		}
+		String n = name.substring(9);
+		if (n.startsWith("maven/") || n.equals("MANIFEST.MF") || n.equals("INDEX.LIST")) {
+			return true;
+		}
+		if (n.indexOf('/') >= 0) {
+			return false;
+		}
+		String upper = n.toUpperCase();
+		return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC")
+				|| upper.startsWith("LICENSE") || upper.startsWith("NOTICE") || upper.startsWith("DEPENDENCIES");
+	}
+
+	/* 依赖包引用的类 */
+	private Set<String> getReferences(File jar) throws IOException {
+		Set<String> refs = m_References.get(jar);
+		if (null == refs) {
+			refs = ClassReferences.readJar(jar);
+			m_References.put(jar, refs);
+		}
+		return refs;
+	}
+
+	/* 节点下的compile依赖 */
+	private void collectChildren(DependencyNode node, Map<Artifact, File> libs, Set<Artifact> removed) {
+		for (DependencyNode child : node.getChildren()) {
+			Artifact a = child.getArtifact();
+			if (!libs.containsKey(a) || !isCandidate(a)) {
+				continue;
+			}
+			removed.add(a);
+			collectChildren(child, libs, removed);
+		}
+	}
+
+	/* 是否项目的直接依赖 */
+	private static boolean isDirect(DependencyNode node) {
+		DependencyNode parent = node.getParent();
+		return null != parent && null == parent.getParent();
+	}
+
+	/* 是否可以精简 */
+	private boolean isCandidate(Artifact a) {
+		if (!StringUtil.eq(a.getScope(), Artifact.SCOPE_COMPILE)) {
+			return false;
+		}
+		if (null != m_Keeps) {
+			String id = a.getGroupId() + ":" + a.getArtifactId();
+			for (String keep : m_Keeps) {
+				if (SelectorUtils.match(keep, id)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean intersects(Set<String> s1, Set<String> s2) {
+		if (s1.size() > s2.size()) {
+			Set<String> t = s1;
+			s1 = s2;
+			s2 = t;
+		}
+		for (String s : s1) {
+			if (s2.contains(s)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 分析结果
+	 */
+	public static class Result {
+		/** 未使用的依赖 */
+		final Map<Artifact, File> m_Unused = new LinkedHashMap<Artifact, File>();
+		/** 有重复类的依赖，及与之重复的（先打包的）依赖和重复类数 */
+		final Map<Artifact, Map<Artifact, Integer>> m_Duplicates = new LinkedHashMap<Artifact, Map<Artifact, Integer>>();
+		/** 所有类与资源都重复的依赖 */
+		final Map<Artifact, File> m_Shadowed = new LinkedHashMap<Artifact, File>();
+
+		/**
+		 * 可以排除的依赖
+		 *
+		 * @return 依赖
+		 */
+		public Set<Artifact> getRemovable() {
+			Set<Artifact> set = new LinkedHashSet<Artifact>(m_Unused.keySet());
+			set.addAll(m_Shadowed.keySet());
+			return set;
+		}
+
+		/**
+		 * 排除后节省的字节数（依赖包文件大小）
+		 *
+		 * @return 字节数
+		 */
+		public long getSavedBytes() {
+			long bytes = 0;
+			for (File f : m_Unused.values()) {
+				bytes += f.length();
+			}
+			for (File f : m_Shadowed.values()) {
+				bytes += f.length();
+			}
+			return bytes;
+		}
+
+		/**
+		 * 输出到日志
+		 *
+		 * @param log     日志
+		 * @param exclude 是否已排除
+		 */
+		public void log(Log log, boolean exclude) {
+			for (Artifact a : m_Unused.keySet()) {
+				log.warn((exclude ? "排除" : "") + "未使用的依赖 " + a.getId());
+			}
+			for (Artifact a : m_Shadowed.keySet()) {
+				log.warn((exclude ? "排除" : "") + "类全部重复的依赖 " + a.getId());
+			}
+			for (Entry<Artifact, Map<Artifact, Integer>> e : m_Duplicates.entrySet()) {
+				if (m_Shadowed.containsKey(e.getKey())) {
+					continue;
+				}
+				for (Entry<Artifact, Integer> d : e.getValue().entrySet()) {
+					log.warn("依赖 " + e.getKey().getId() + " 与 " + d.getKey().getId() + " 有" + d.getValue() + "个重复的类");
+				}
+			}
+			long saved = getSavedBytes();
+			if (saved > 0) {
+				log.info((exclude ? "精简依赖节省" : "精简依赖可节省") + (saved >> 10) + "KB");
+			}
+		}
+
+		/**
+		 * 写报告
+		 *
+		 * @param file    报告文件
+		 * @param exclude 是否已排除
+		 * @throws IOException IO异常
+		 */
+		public void write(File file, boolean exclude) throws IOException {
+			FileUtil.sureDir(file);
+			try (Writer out = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+				out.write("# " + (exclude ? "已排除" : "可排除") + "，共" + getSavedBytes() + "字节\n");
+				out.write("\n## 未使用的依赖\n");
+				for (Entry<Artifact, File> e : m_Unused.entrySet()) {
+					out.write(e.getKey().getId() + "\t" + e.getValue().length() + "\n");
+				}
+				out.write("\n## 类全部重复的依赖\n");
+				for (Entry<Artifact, File> e : m_Shadowed.entrySet()) {
+					out.write(e.getKey().getId() + "\t" + e.getValue().length() + "\n");
+				}
+				out.write("\n## 重复的类\n");
+				Map<String, String> lines = new TreeMap<String, String>();
+				for (Entry<Artifact, Map<Artifact, Integer>> e : m_Duplicates.entrySet()) {
+					for (Entry<Artifact, Integer> d : e.getValue().entrySet()) {
+						lines.put(e.getKey().getId() + "\t" + d.getKey().getId(), String.valueOf(d.getValue()));
+					}
+				}
+				for (Entry<String, String> e : lines.entrySet()) {
+					out.write(e.getKey() + "\t" + e.getValue() + "\n");
+				}
+			}
+		}
+	}
+}
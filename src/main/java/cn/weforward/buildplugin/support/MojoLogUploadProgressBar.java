@@ -17,19 +17,26 @@ import cn.weforward.buildplugin.UploadProgressBar;
 public class MojoLogUploadProgressBar implements UploadProgressBar {
 
 	Log m_Out;
+	/** 上次输出的进度，进度变化时才输出 */
+	long m_Step = -1;
 
 	public MojoLogUploadProgressBar(Log log) {
 		m_Out = log;
 	}
 
 	@Override
-	public void start() {
+	public synchronized void start() {
+		m_Step = -1;
 		m_Out.info("开始上传文件");
 	}
 
 	@Override
-	public void progress(long count, long sum) {
-		long step = ((count * 100 / sum) * 100) / 100;
+	public synchronized void progress(long count, long sum) {
+		long step = sum <= 0 ? 100 : count * 100 / sum;
+		if (step == m_Step) {
+			return;
+		}
+		m_Step = step;
 		m_Out.info("当前进度:" + step + "%");
 	}
 
@@ -25,6 +25,11 @@ public class RevisionControlByEmpty implements RevisionControl {
 		}
 	}
 
+	@Override
+	public long getCommitTime() throws MojoFailureException {
+		return 0;
+	}
+
 	@Override
 	public boolean isDirty() throws MojoFailureException {
 		return false;
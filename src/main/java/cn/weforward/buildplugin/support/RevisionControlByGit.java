@@ -140,6 +140,21 @@ public class RevisionControlByGit implements RevisionControl {
 		throw new MojoFailureException("未有Git提交日志");
 	}
 
+	@Override
+	public long getCommitTime() throws MojoFailureException {
+		Iterable<RevCommit> it;
+		try {
+			// 只看HEAD，其它分支、stash与远程分支的新提交不能改变时间
+			it = m_Git.log().setMaxCount(1).call();
+		} catch (GitAPIException e) {
+			throw new MojoFailureException("调用Git日志失败:" + e.getMessage(), e);
+		}
+		for (RevCommit r : it) {
+			return r.getCommitTime() * 1000l;
+		}
+		return 0;
+	}
+
 	@Override
 	public boolean isDirty() throws MojoFailureException {
 		try {
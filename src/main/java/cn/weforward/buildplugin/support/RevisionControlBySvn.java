@@ -32,6 +32,7 @@ import org.tmatesoft.svn.core.wc.SVNClientManager;
 import org.tmatesoft.svn.core.wc.SVNCommitClient;
 import org.tmatesoft.svn.core.wc.SVNCopyClient;
 import org.tmatesoft.svn.core.wc.SVNCopySource;
+import org.tmatesoft.svn.core.wc.SVNInfo;
 import org.tmatesoft.svn.core.wc.SVNRevision;
 import org.tmatesoft.svn.core.wc.SVNStatus;
 import org.tmatesoft.svn.core.wc.SVNStatusClient;
@@ -98,6 +99,17 @@ public class RevisionControlBySvn implements RevisionControl {
 		}
 	}
 
+	@Override
+	public long getCommitTime() throws MojoFailureException {
+		try {
+			// 工作副本的提交时间，服务端的最新版本会随别人的提交变化
+			SVNInfo info = m_ClientManager.getWCClient().doInfo(m_Workspace, SVNRevision.WORKING);
+			return null == info || null == info.getCommittedDate() ? 0 : info.getCommittedDate().getTime();
+		} catch (SVNException e) {
+			throw new MojoFailureException("获取版本信息出错:" + e.getMessage(), e);
+		}
+	}
+
 	@Override
 	public boolean isDirty() throws MojoFailureException {
 		// 未提交的修改
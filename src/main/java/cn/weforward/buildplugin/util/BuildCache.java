@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 构建缓存
+ * <p>
+ * 按输入的内容指纹（见{@link BuildFingerprint#getKey()}）存放生成的jar包，相同输入的构建直接恢复而不再打包。
+ * 文件以相对输出目录的路径存放，一个键下的文件要么全部可用要么都不可用
+ *
+ * @author daibo
+ *
+ */
+public interface BuildCache {
+	/**
+	 * 恢复缓存的文件
+	 *
+	 * @param key 指纹
+	 * @param dir 输出目录
+	 * @return 命中并已恢复返回true，未命中返回false
+	 * @throws IOException IO异常
+	 */
+	boolean restore(String key, File dir) throws IOException;
+
+	/**
+	 * 存入生成的文件，已存在时忽略
+	 *
+	 * @param key   指纹
+	 * @param dir   输出目录
+	 * @param names 文件相对输出目录的路径，以“/”分隔
+	 * @throws IOException IO异常
+	 */
+	void store(String key, File dir, List<String> names) throws IOException;
+}
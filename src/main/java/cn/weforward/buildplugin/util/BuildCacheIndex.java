@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * 构建缓存中一个键下的文件清单，每行为“大小\t路径”，最后写入，存在即表示文件已完整存入
+ *
+ * @author daibo
+ *
+ */
+class BuildCacheIndex {
+	/** 清单名 */
+	static final String NAME = "index";
+
+	/** 文件路径与大小 */
+	final Map<String, Long> files;
+
+	BuildCacheIndex() {
+		files = new LinkedHashMap<String, Long>();
+	}
+
+	/**
+	 * 读取清单
+	 *
+	 * @param in 清单内容
+	 * @return 清单
+	 * @throws IOException 格式不正确
+	 */
+	static BuildCacheIndex read(InputStream in) throws IOException {
+		BuildCacheIndex index = new BuildCacheIndex();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, JarWriter.UTF_8));
+		String line;
+		while (null != (line = reader.readLine())) {
+			int idx = line.indexOf('\t');
+			if (idx <= 0) {
+				continue;
+			}
+			String name = line.substring(idx + 1);
+			if (name.startsWith("/") || name.contains("..")) {
+				throw new IOException("缓存清单中的路径不正确:" + name);
+			}
+			try {
+				index.files.put(name, Long.parseLong(line.substring(0, idx)));
+			} catch (NumberFormatException e) {
+				throw new IOException("缓存清单格式不正确:" + line, e);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * 添加文件
+	 *
+	 * @param name 路径
+	 * @param file 文件
+	 */
+	void add(String name, File file) {
+		files.put(name, file.length());
+	}
+
+	/**
+	 * 转为清单内容
+	 *
+	 * @return 内容
+	 */
+	byte[] toBytes() {
+		StringBuilder sb = new StringBuilder();
+		for (Entry<String, Long> e : files.entrySet()) {
+			sb.append(e.getValue()).append('\t').append(e.getKey()).append('\n');
+		}
+		return sb.toString().getBytes(JarWriter.UTF_8);
+	}
+
+	/**
+	 * 所有文件的大小
+	 *
+	 * @return 字节数
+	 */
+	long getSize() {
+		long size = 0;
+		for (Long l : files.values()) {
+			size += l;
+		}
+		return size;
+	}
+}
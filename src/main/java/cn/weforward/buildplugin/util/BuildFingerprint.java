@@ -0,0 +1,338 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * 打包输入的指纹
+ * <p>
+ * 由配置与各组输入（类文件目录、源码目录、依赖包）的摘要组成，每组输入的摘要按路径顺序计算各文件的路径、大小与修改时间，
+ * 不读取文件内容，大的目录也只需几十毫秒。同时记录生成的文件的大小与修改时间，指纹一致且生成的文件未被改动时可跳过打包
+ * <p>
+ * 用于构建缓存时改用按内容计算的输入（{@link #putDirectoryContents(String, File, FileSelector)}、
+ * {@link #putFileContents(String, List, DigestCache)}），与路径、修改时间无关，不同机器上相同的输入得到相同的{@link #getKey()}
+ *
+ * @author daibo
+ *
+ */
+public class BuildFingerprint {
+	/** 格式版本，指纹的计算方式变化时修改，使旧的指纹失效 */
+	private static final String VERSION = "1";
+	/** 不存在的输入的摘要 */
+	private static final String NONE = "none";
+
+	/** 配置 */
+	private final Map<String, String> m_Config;
+	/** 各组输入的摘要 */
+	private final Map<String, String> m_Inputs;
+	/** 生成的文件的路径与“大小 修改时间” */
+	private final Map<String, String> m_Outputs;
+
+	public BuildFingerprint() {
+		m_Config = new TreeMap<String, String>();
+		m_Inputs = new LinkedHashMap<String, String>();
+		m_Outputs = new TreeMap<String, String>();
+	}
+
+	/**
+	 * 加入影响生成结果的配置
+	 *
+	 * @param key   名称
+	 * @param value 值，可以是数组
+	 */
+	public void putConfig(String key, Object value) {
+		String v;
+		if (value instanceof Object[]) {
+			v = Arrays.toString((Object[]) value);
+		} else {
+			v = String.valueOf(value);
+		}
+		m_Config.put(key, v);
+	}
+
+	/**
+	 * 加入目录下的文件
+	 *
+	 * @param name     输入名
+	 * @param dir      目录，不存在时记为空
+	 * @param selector 包含与排除规则，与打包时一致
+	 */
+	public void putDirectory(String name, File dir, FileSelector selector) {
+		if (null == dir || !dir.isDirectory()) {
+			m_Inputs.put(name, NONE);
+			return;
+		}
+		MessageDigest md = DigestCache.newSha256();
+		DirectoryWalker walker = new DirectoryWalker(dir, selector);
+		String path;
+		while (null != (path = walker.next())) {
+			update(md, path);
+			if (!path.endsWith("/")) {
+				File f = new File(dir, path);
+				update(md, f.length() + " " + f.lastModified());
+			}
+		}
+		m_Inputs.put(name, DigestCache.toHex(md.digest()));
+	}
+
+	/**
+	 * 按内容加入目录下的文件，与目录位置及修改时间无关
+	 *
+	 * @param name     输入名
+	 * @param dir      目录，不存在时记为空
+	 * @param selector 包含与排除规则，与打包时一致
+	 * @throws IOException IO异常
+	 */
+	public void putDirectoryContents(String name, File dir, FileSelector selector) throws IOException {
+		if (null == dir || !dir.isDirectory()) {
+			m_Inputs.put(name, NONE);
+			return;
+		}
+		MessageDigest md = DigestCache.newSha256();
+		MessageDigest content = DigestCache.newSha256();
+		byte[] buffer = new byte[64 * 1024];
+		DirectoryWalker walker = new DirectoryWalker(dir, selector);
+		String path;
+		while (null != (path = walker.next())) {
+			update(md, path);
+			if (path.endsWith("/")) {
+				continue;
+			}
+			try (InputStream in = new FileInputStream(new File(dir, path))) {
+				int l;
+				while ((l = in.read(buffer)) > 0) {
+					content.update(buffer, 0, l);
+				}
+			}
+			md.update(content.digest());
+		}
+		m_Inputs.put(name, DigestCache.toHex(md.digest()));
+	}
+
+	/**
+	 * 按内容加入一组文件（如依赖包），只取文件名与内容摘要，顺序也是输入的一部分
+	 *
+	 * @param name  输入名
+	 * @param files 文件
+	 * @param cache 摘要缓存，为null时每次读取文件
+	 * @throws IOException IO异常
+	 */
+	public void putFileContents(String name, List<File> files, DigestCache cache) throws IOException {
+		if (null == cache) {
+			cache = DigestCache.open(null);
+		}
+		MessageDigest md = DigestCache.newSha256();
+		for (File f : files) {
+			update(md, f.getName());
+			update(md, cache.digest(f).getSha256());
+		}
+		m_Inputs.put(name, DigestCache.toHex(md.digest()));
+	}
+
+	/**
+	 * 按内容加入类所在的jar包（如本插件、打入jar包的加载器），升级后指纹随之变化，构建缓存不会取回旧版本生成的jar包。
+	 * 类不在jar包中（如在开发环境的目录中）时只取位置名
+	 *
+	 * @param name  输入名
+	 * @param clazz 类
+	 * @param cache 摘要缓存，为null时每次读取文件
+	 * @throws IOException IO异常
+	 */
+	public void putCodeSource(String name, Class<?> clazz, DigestCache cache) throws IOException {
+		File file = getCodeSource(clazz);
+		if (null == file) {
+			m_Inputs.put(name, NONE);
+			return;
+		}
+		if (!file.isFile()) {
+			m_Inputs.put(name, file.getName());
+			return;
+		}
+		if (null == cache) {
+			cache = DigestCache.open(null);
+		}
+		m_Inputs.put(name, file.getName() + " " + cache.digest(file).getSha256());
+	}
+
+	/* 类所在的jar包或目录 */
+	private static File getCodeSource(Class<?> clazz) {
+		CodeSource source = clazz.getProtectionDomain().getCodeSource();
+		if (null == source || null == source.getLocation()) {
+			return null;
+		}
+		try {
+			return new File(source.getLocation().toURI());
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			return new File(source.getLocation().getPath());
+		}
+	}
+
+	/**
+	 * 加入一组文件，顺序也是输入的一部分
+	 *
+	 * @param name  输入名
+	 * @param files 文件
+	 */
+	public void putFiles(String name, List<File> files) {
+		MessageDigest md = DigestCache.newSha256();
+		for (File f : files) {
+			update(md, f.getAbsolutePath());
+			update(md, f.length() + " " + f.lastModified());
+		}
+		m_Inputs.put(name, DigestCache.toHex(md.digest()));
+	}
+
+	/**
+	 * 记录生成的文件，在生成之后调用
+	 *
+	 * @param file 文件，为目录时记录其下所有文件
+	 */
+	public void addOutput(File file) {
+		if (file.isDirectory()) {
+			File[] fs = file.listFiles();
+			if (null != fs) {
+				for (File f : fs) {
+					addOutput(f);
+				}
+			}
+			return;
+		}
+		m_Outputs.put(file.getAbsolutePath(), file.length() + " " + file.lastModified());
+	}
+
+	/**
+	 * 与上一次的指纹比较
+	 *
+	 * @param file 上一次保存的指纹文件
+	 * @return 可跳过打包时返回null，否则返回需要打包的原因
+	 * @throws IOException IO异常
+	 */
+	public String check(File file) throws IOException {
+		Map<String, String> old = new LinkedHashMap<String, String>();
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), JarWriter.UTF_8))) {
+			String line;
+			while (null != (line = in.readLine())) {
+				int idx = line.indexOf('\t');
+				if (idx > 0) {
+					old.put(line.substring(0, idx), line.substring(idx + 1));
+				}
+			}
+		} catch (FileNotFoundException e) {
+			return "没有上一次的指纹";
+		}
+		if (!VERSION.equals(old.get("version"))) {
+			return "指纹格式已变化";
+		}
+		if (!getConfigDigest().equals(old.get("config"))) {
+			return "配置已变化";
+		}
+		for (Entry<String, String> e : m_Inputs.entrySet()) {
+			if (!e.getValue().equals(old.get("input." + e.getKey()))) {
+				return e.getKey() + "已变化";
+			}
+		}
+		int outputs = 0;
+		for (Entry<String, String> e : old.entrySet()) {
+			if (e.getKey().startsWith("input.") && !m_Inputs.containsKey(e.getKey().substring(6))) {
+				return "输入已变化";
+			}
+			if (!e.getKey().startsWith("output.")) {
+				continue;
+			}
+			File f = new File(e.getKey().substring(7));
+			if (!f.isFile() || !e.getValue().equals(f.length() + " " + f.lastModified())) {
+				return f.getName() + "已被改动";
+			}
+			outputs++;
+		}
+		return outputs > 0 ? null : "没有生成的文件";
+	}
+
+	/**
+	 * 保存指纹，先写临时文件再替换
+	 *
+	 * @param file 文件
+	 * @throws IOException IO异常
+	 */
+	public void save(File file) throws IOException {
+		FileUtil.sureDir(file);
+		File temp = new File(file.getAbsolutePath() + ".tmp");
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), JarWriter.UTF_8)) {
+			out.write("version\t" + VERSION + "\n");
+			out.write("config\t" + getConfigDigest() + "\n");
+			for (Entry<String, String> e : m_Inputs.entrySet()) {
+				out.write("input." + e.getKey() + "\t" + e.getValue() + "\n");
+			}
+			for (Entry<String, String> e : m_Outputs.entrySet()) {
+				out.write("output." + e.getKey() + "\t" + e.getValue() + "\n");
+			}
+		}
+		if (file.exists() && !file.delete()) {
+			temp.delete();
+			throw new IOException("无法替换" + file);
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("无法生成" + file);
+		}
+	}
+
+	/**
+	 * 配置与所有输入合成的键，用于构建缓存
+	 *
+	 * @return 16进制的sha256
+	 */
+	public String getKey() {
+		MessageDigest md = DigestCache.newSha256();
+		update(md, VERSION);
+		update(md, getConfigDigest());
+		for (Entry<String, String> e : m_Inputs.entrySet()) {
+			update(md, e.getKey());
+			update(md, e.getValue());
+		}
+		return DigestCache.toHex(md.digest());
+	}
+
+	/* 配置的摘要 */
+	private String getConfigDigest() {
+		MessageDigest md = DigestCache.newSha256();
+		for (Entry<String, String> e : m_Config.entrySet()) {
+			update(md, e.getKey());
+			update(md, e.getValue());
+		}
+		return DigestCache.toHex(md.digest());
+	}
+
+	private static void update(MessageDigest md, String s) {
+		md.update(s.getBytes(JarWriter.UTF_8));
+		md.update((byte) 0);
+	}
+}
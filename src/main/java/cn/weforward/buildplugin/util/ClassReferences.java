@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 读取类文件引用的类
+ * <p>
+ * 只解析常量池，取类常量、描述符与签名中出现的类，以及形如全限定类名的字符串常量（Class.forName之类的反射），
+ * 不依赖ASM，任何版本的类文件都能读取，结果偏多不偏少。类名为内部格式，如“java/lang/String”
+ *
+ * @author daibo
+ *
+ */
+public class ClassReferences {
+	/** 类文件标识 */
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private ClassReferences() {
+
+	}
+
+	/**
+	 * 读取类文件引用的类
+	 *
+	 * @param in 类文件内容
+	 * @return 类名
+	 * @throws IOException 不是有效的类文件
+	 */
+	public static Set<String> read(InputStream in) throws IOException {
+		Set<String> refs = new HashSet<String>();
+		read(in, refs);
+		return refs;
+	}
+
+	/**
+	 * 读取类文件引用的类
+	 *
+	 * @param in   类文件内容
+	 * @param refs 放入引用的类名
+	 * @throws IOException 不是有效的类文件
+	 */
+	public static void read(InputStream in, Set<String> refs) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) {
+			throw new IOException("不是有效的类文件");
+		}
+		data.readUnsignedShort();
+		data.readUnsignedShort();
+		int count = data.readUnsignedShort();
+		String[] utf8s = new String[count];
+		int[] classes = new int[count];
+		int[] strings = new int[count];
+		int classCount = 0;
+		int stringCount = 0;
+		for (int i = 1; i < count; i++) {
+			int tag = data.readUnsignedByte();
+			switch (tag) {
+			case 1:// Utf8
+				utf8s[i] = data.readUTF();
+				break;
+			case 7:// Class
+				classes[classCount++] = data.readUnsignedShort();
+				break;
+			case 8:// String
+				strings[stringCount++] = data.readUnsignedShort();
+				break;
+			case 16:// MethodType
+			case 19:// Module
+			case 20:// Package
+				data.readUnsignedShort();
+				break;
+			case 15:// MethodHandle
+				data.readUnsignedByte();
+				data.readUnsignedShort();
+				break;
+			case 3:// Integer
+			case 4:// Float
+			case 9:// Fieldref
+			case 10:// Methodref
+			case 11:// InterfaceMethodref
+			case 12:// NameAndType
+			case 17:// Dynamic
+			case 18:// InvokeDynamic
+				data.readInt();
+				break;
+			case 5:// Long
+			case 6:// Double
+				data.readLong();
+				i++;
+				break;
+			default:
+				throw new IOException("不支持的常量类型:" + tag);
+			}
+		}
+		for (int i = 0; i < classCount; i++) {
+			String name = utf8s[classes[i]];
+			if (null == name) {
+				continue;
+			}
+			if (name.startsWith("[")) {
+				addDescriptor(name, refs);
+			} else {
+				refs.add(name);
+			}
+		}
+		boolean[] isString = new boolean[count];
+		for (int i = 0; i < stringCount; i++) {
+			isString[strings[i]] = true;
+		}
+		for (int i = 1; i < count; i++) {
+			String s = utf8s[i];
+			if (null == s) {
+				continue;
+			}
+			if (isString[i]) {
+				if (isClassName(s)) {
+					refs.add(s.replace('.', '/'));
+				}
+			} else {
+				// 描述符、签名与注解类型
+				addDescriptor(s, refs);
+			}
+		}
+	}
+
+	/**
+	 * 读取jar包中所有类文件引用的类
+	 *
+	 * @param jar jar包
+	 * @return 类名
+	 * @throws IOException IO异常
+	 */
+	public static Set<String> readJar(File jar) throws IOException {
+		Set<String> refs = new HashSet<String>();
+		try (ZipFile zip = new ZipFile(jar)) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry e = entries.nextElement();
+				if (e.isDirectory() || !e.getName().endsWith(".class")) {
+					continue;
+				}
+				try (InputStream in = new BufferedInputStream(zip.getInputStream(e))) {
+					read(in, refs);
+				}
+			}
+		}
+		return refs;
+	}
+
+	/**
+	 * 读取目录（含子目录）下所有类文件引用的类
+	 *
+	 * @param dir 目录
+	 * @return 类名
+	 * @throws IOException IO异常
+	 */
+	public static Set<String> readDirectory(File dir) throws IOException {
+		Set<String> refs = new HashSet<String>();
+		readDirectory(dir, refs);
+		return refs;
+	}
+
+	private static void readDirectory(File dir, Set<String> refs) throws IOException {
+		File[] files = dir.listFiles();
+		if (null == files) {
+			return;
+		}
+		for (File f : files) {
+			if (f.isDirectory()) {
+				readDirectory(f, refs);
+			} else if (f.getName().endsWith(".class")) {
+				try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+					read(in, refs);
+				}
+			}
+		}
+	}
+
+	/* 取字符串中所有“L类名;”形式的类 */
+	private static void addDescriptor(String s, Set<String> refs) {
+		int start = s.indexOf('L');
+		while (start >= 0) {
+			int end = s.indexOf(';', start);
+			if (end < 0) {
+				return;
+			}
+			// 泛型签名中类名后可能跟<...>
+			int lt = s.indexOf('<', start);
+			if (lt >= 0 && lt < end) {
+				end = lt;
+			}
+			int next = start + 1;
+			if (end > start + 1) {
+				String name = s.substring(start + 1, end);
+				if (isInternalName(name)) {
+					refs.add(name);
+					next = end + 1;
+				}
+			}
+			start = s.indexOf('L', next);
+		}
+	}
+
+	/* 是否像内部格式的类名 */
+	private static boolean isInternalName(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			if (ch != '/' && ch != '$' && !Character.isJavaIdentifierPart(ch)) {
+				return false;
+			}
+		}
+		return Character.isJavaIdentifierStart(name.charAt(0));
+	}
+
+	/* 是否像全限定类名，如a.b.C */
+	private static boolean isClassName(String s) {
+		if (s.isEmpty() || s.indexOf('.') < 0 || !Character.isJavaIdentifierStart(s.charAt(0))) {
+			return false;
+		}
+		char last = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if (ch == '.') {
+				if (last == '.') {
+					return false;
+				}
+			} else if (!Character.isJavaIdentifierPart(ch)) {
+				return false;
+			}
+			last = ch;
+		}
+		return last != '.';
+	}
+}
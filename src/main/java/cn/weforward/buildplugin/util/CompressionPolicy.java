@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按条目决定是否压缩的策略
+ * <p>
+ * 嵌套的jar包与已压缩过的媒体文件直接存储（再压缩只会浪费时间），其它条目压缩。判断顺序为：必须存储的、指定压缩的、指定或默认存储的，都不匹配时压缩。
+ * 模式为条目名的ant风格通配符（如**&#47;*.png），不区分大小写，每组模式修改时编译为一个{@link GlobMatcher}
+ *
+ * @author daibo
+ *
+ */
+public class CompressionPolicy {
+	/** 默认直接存储的条目 */
+	public static final String[] DEFAULT_STORED = { "**/*.jar", "**/*.war", "**/*.zip", "**/*.gz", "**/*.tgz",
+			"**/*.bz2", "**/*.xz", "**/*.7z", "**/*.rar", "**/*.png", "**/*.jpg", "**/*.jpeg", "**/*.gif",
+			"**/*.webp", "**/*.ico", "**/*.mp3", "**/*.mp4", "**/*.ogg", "**/*.woff", "**/*.woff2", "**/*.jsa" };
+
+	/** 是否压缩，为false时全部直接存储 */
+	private boolean m_Enabled;
+	/** 必须直接存储的条目，如spring boot的BOOT-INF/lib下的jar包 */
+	private final List<String> m_Required;
+	/** 直接存储的条目 */
+	private final List<String> m_Stored;
+	/** 压缩的条目，优先于直接存储的条目 */
+	private final List<String> m_Deflated;
+	/** 编译后的必须直接存储的条目 */
+	private GlobMatcher m_RequiredMatcher;
+	/** 编译后的直接存储的条目 */
+	private GlobMatcher m_StoredMatcher;
+	/** 编译后的压缩的条目 */
+	private GlobMatcher m_DeflatedMatcher;
+
+	public CompressionPolicy() {
+		m_Enabled = true;
+		m_Required = new ArrayList<String>();
+		m_Stored = new ArrayList<String>(Arrays.asList(DEFAULT_STORED));
+		m_Deflated = new ArrayList<String>();
+		m_RequiredMatcher = compile(m_Required);
+		m_StoredMatcher = compile(m_Stored);
+		m_DeflatedMatcher = compile(m_Deflated);
+	}
+
+	/**
+	 * 是否压缩
+	 *
+	 * @param enabled 为false时全部直接存储
+	 */
+	public void setEnabled(boolean enabled) {
+		m_Enabled = enabled;
+	}
+
+	/**
+	 * 添加必须直接存储的条目，不受{@link #setExcludes(String[])}影响
+	 *
+	 * @param pattern 模式
+	 */
+	public void addRequired(String pattern) {
+		m_Required.add(pattern);
+		m_RequiredMatcher = compile(m_Required);
+	}
+
+	/**
+	 * 设置额外直接存储的条目
+	 *
+	 * @param includes 模式
+	 */
+	public void setIncludes(String[] includes) {
+		m_Stored.clear();
+		m_Stored.addAll(Arrays.asList(DEFAULT_STORED));
+		if (null != includes) {
+			m_Stored.addAll(Arrays.asList(includes));
+		}
+		m_StoredMatcher = compile(m_Stored);
+	}
+
+	/**
+	 * 设置要压缩的条目，可用于排除默认直接存储的条目
+	 *
+	 * @param excludes 模式
+	 */
+	public void setExcludes(String[] excludes) {
+		m_Deflated.clear();
+		if (null != excludes) {
+			m_Deflated.addAll(Arrays.asList(excludes));
+		}
+		m_DeflatedMatcher = compile(m_Deflated);
+	}
+
+	/**
+	 * 条目是否要压缩
+	 *
+	 * @param name 条目名
+	 * @return 压缩返回true，直接存储返回false
+	 */
+	public boolean isDeflate(String name) {
+		if (!m_Enabled || m_RequiredMatcher.matches(name)) {
+			return false;
+		}
+		if (m_DeflatedMatcher.matches(name)) {
+			return true;
+		}
+		return !m_StoredMatcher.matches(name);
+	}
+
+	private static GlobMatcher compile(List<String> patterns) {
+		return GlobMatcher.compile(patterns.toArray(new String[patterns.size()]), false);
+	}
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * 文件摘要（crc32与sha256）的持久缓存
+ * <p>
+ * 以文件的绝对路径、大小和修改时间为键，依赖包这类很少变化的文件在多次构建间不需要重复读取计算，线程安全
+ *
+ * @author daibo
+ *
+ */
+public class DigestCache {
+	/** 缓存文件 */
+	private final File m_File;
+	/** 摘要，键为文件绝对路径 */
+	private final Map<String, Digest> m_Digests;
+	/** 是否有变化 */
+	private volatile boolean m_Changed;
+
+	private DigestCache(File file) {
+		m_File = file;
+		m_Digests = new ConcurrentHashMap<String, Digest>();
+	}
+
+	/**
+	 * 打开缓存，缓存文件不存在或损坏时为空缓存
+	 *
+	 * @param file 缓存文件
+	 * @return 缓存
+	 */
+	public static DigestCache open(File file) {
+		DigestCache cache = new DigestCache(file);
+		if (null != file && file.isFile()) {
+			try {
+				cache.load(file);
+			} catch (IOException | RuntimeException e) {
+				cache.m_Digests.clear();
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * 取文件的摘要，没有缓存或文件已变化时返回null
+	 *
+	 * @param file 文件
+	 * @return 摘要
+	 */
+	public Digest get(File file) {
+		Digest d = m_Digests.get(file.getAbsolutePath());
+		if (null == d || d.size != file.length() || d.time != file.lastModified()) {
+			return null;
+		}
+		return d;
+	}
+
+	/**
+	 * 取文件的摘要，没有缓存时读取文件计算并缓存
+	 *
+	 * @param file 文件
+	 * @return 摘要
+	 * @throws IOException IO异常
+	 */
+	public Digest digest(File file) throws IOException {
+		Digest d = get(file);
+		if (null != d) {
+			return d;
+		}
+		long time = file.lastModified();
+		CRC32 crc = new CRC32();
+		MessageDigest sha = newSha256();
+		long size = 0;
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = new FileInputStream(file)) {
+			int l;
+			while ((l = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, l);
+				sha.update(buffer, 0, l);
+				size += l;
+			}
+		}
+		d = new Digest(size, time, crc.getValue(), toHex(sha.digest()));
+		put(file, d);
+		return d;
+	}
+
+	/**
+	 * 计算内存中文件内容的摘要并缓存
+	 *
+	 * @param file 文件
+	 * @param time 读取前的文件修改时间
+	 * @param data 文件内容
+	 * @param len  内容长度
+	 * @return 摘要
+	 */
+	public Digest digest(File file, long time, byte[] data, int len) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, len);
+		MessageDigest sha = newSha256();
+		sha.update(data, 0, len);
+		Digest d = new Digest(len, time, crc.getValue(), toHex(sha.digest()));
+		put(file, d);
+		return d;
+	}
+
+	/**
+	 * 放入已算好的摘要（如打包时顺带计算的），文件在计算期间被修改时不缓存
+	 *
+	 * @param file 文件
+	 * @param d    摘要
+	 */
+	public void put(File file, Digest d) {
+		if (d.size != file.length() || d.time != file.lastModified()) {
+			return;
+		}
+		m_Digests.put(file.getAbsolutePath(), d);
+		m_Changed = true;
+	}
+
+	/**
+	 * 保存缓存，先写临时文件再替换，多个构建同时保存时以最后一个为准
+	 *
+	 * @throws IOException IO异常
+	 */
+	public void save() throws IOException {
+		if (!m_Changed || null == m_File) {
+			return;
+		}
+		FileUtil.sureDir(m_File);
+		File temp = new File(m_File.getAbsolutePath() + "." + Thread.currentThread().getId() + "."
+				+ System.nanoTime() + ".tmp");
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), JarWriter.UTF_8)) {
+			for (Entry<String, Digest> e : m_Digests.entrySet()) {
+				File f = new File(e.getKey());
+				Digest d = e.getValue();
+				if (d.size != f.length() || d.time != f.lastModified()) {
+					// 已变化或已删除
+					continue;
+				}
+				out.write(d.size + "\t" + d.time + "\t" + Long.toHexString(d.crc) + "\t" + d.sha256 + "\t"
+						+ e.getKey() + "\n");
+			}
+		}
+		try {
+			Files.move(temp.toPath(), m_File.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+		m_Changed = false;
+	}
+
+	private void load(File file) throws IOException {
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), JarWriter.UTF_8))) {
+			String line;
+			while (null != (line = in.readLine())) {
+				String[] arr = line.split("\t", 5);
+				if (arr.length != 5) {
+					continue;
+				}
+				Digest d = new Digest(Long.parseLong(arr[0]), Long.parseLong(arr[1]), Long.parseLong(arr[2], 16),
+						arr[3]);
+				m_Digests.put(arr[4], d);
+			}
+		}
+	}
+
+	/**
+	 * 创建sha256摘要
+	 *
+	 * @return 摘要
+	 */
+	public static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new UnsupportedOperationException("不支持SHA-256", e);
+		}
+	}
+
+	/**
+	 * 转换为16进制字符串
+	 *
+	 * @param bs 字节
+	 * @return 字符串
+	 */
+	public static String toHex(byte[] bs) {
+		char[] digits = "0123456789abcdef".toCharArray();
+		char[] cs = new char[bs.length * 2];
+		for (int i = 0; i < bs.length; i++) {
+			cs[i * 2] = digits[(bs[i] >> 4) & 0x0f];
+			cs[i * 2 + 1] = digits[bs[i] & 0x0f];
+		}
+		return new String(cs);
+	}
+
+	/**
+	 * 文件摘要
+	 */
+	public static class Digest {
+		/** 文件大小 */
+		final long size;
+		/** 文件修改时间 */
+		final long time;
+		/** crc32 */
+		final long crc;
+		/** sha256，16进制 */
+		final String sha256;
+
+		Digest(long size, long time, long crc, String sha256) {
+			this.size = size;
+			this.time = time;
+			this.crc = crc;
+			this.sha256 = sha256;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		public String getSha256() {
+			return sha256;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * 目录构建缓存，可以是本地目录或多台构建机共享的NFS目录
+ * <p>
+ * 每个键一个目录（按键的前两个字符分一级子目录），文件先写到临时目录再整个改名，不会读到存了一半的内容。
+ * 恢复时优先硬链接（缓存中的文件为只读，不会被改写），不能硬链接时（如跨文件系统）复制。
+ * 目录的修改时间即最近使用时间，存入后总大小超出容量时按最近使用淘汰
+ *
+ * @author daibo
+ *
+ */
+public class DirectoryBuildCache implements BuildCache {
+	/** 临时目录的后缀 */
+	private static final String TEMP_SUFFIX = ".tmp";
+	/** 超过此时间的临时目录视为中断的存入，可清理 */
+	private static final long TEMP_EXPIRE = 24 * 3600 * 1000L;
+
+	/** 缓存目录 */
+	private final File m_Directory;
+	/** 容量（字节），不大于0时不限 */
+	private final long m_MaxSize;
+
+	/**
+	 * 构造
+	 *
+	 * @param directory 缓存目录
+	 * @param maxSize   容量（字节），不大于0时不限
+	 */
+	public DirectoryBuildCache(File directory, long maxSize) {
+		m_Directory = directory;
+		m_MaxSize = maxSize;
+	}
+
+	@Override
+	public boolean restore(String key, File dir) throws IOException {
+		File entry = getEntry(key);
+		BuildCacheIndex index;
+		try (InputStream in = new FileInputStream(new File(entry, BuildCacheIndex.NAME))) {
+			index = BuildCacheIndex.read(in);
+		} catch (IOException e) {
+			// 不存在或正被淘汰
+			return false;
+		}
+		for (Entry<String, Long> e : index.files.entrySet()) {
+			File f = new File(entry, e.getKey());
+			if (!f.isFile() || f.length() != e.getValue()) {
+				return false;
+			}
+		}
+		for (String name : index.files.keySet()) {
+			restoreFile(new File(entry, name), new File(dir, name));
+		}
+		entry.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	@Override
+	public void store(String key, File dir, List<String> names) throws IOException {
+		File entry = getEntry(key);
+		if (new File(entry, BuildCacheIndex.NAME).isFile()) {
+			entry.setLastModified(System.currentTimeMillis());
+			return;
+		}
+		File temp = new File(entry.getParentFile(), key + "." + System.nanoTime() + TEMP_SUFFIX);
+		try {
+			BuildCacheIndex index = new BuildCacheIndex();
+			for (String name : names) {
+				File src = new File(dir, name);
+				File dest = new File(temp, name);
+				FileUtil.sureDir(dest);
+				Files.copy(src.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				dest.setReadOnly();
+				index.add(name, src);
+			}
+			try (OutputStream out = new FileOutputStream(new File(temp, BuildCacheIndex.NAME))) {
+				out.write(index.toBytes());
+			}
+			// 其它构建已经存入时改名失败，以先存入的为准
+			temp.renameTo(entry);
+		} finally {
+			if (temp.exists()) {
+				delete(temp);
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * 按最近使用淘汰，直到总大小不超出容量
+	 */
+	public void evict() {
+		File[] shards = m_Directory.listFiles();
+		if (m_MaxSize <= 0 || null == shards) {
+			return;
+		}
+		List<File> entries = new ArrayList<File>();
+		long total = 0;
+		long now = System.currentTimeMillis();
+		for (File shard : shards) {
+			File[] fs = shard.listFiles();
+			if (null == fs) {
+				continue;
+			}
+			for (File f : fs) {
+				if (f.getName().endsWith(TEMP_SUFFIX)) {
+					if (now - f.lastModified() > TEMP_EXPIRE) {
+						delete(f);
+					}
+					continue;
+				}
+				long size = getSize(f);
+				if (size < 0) {
+					continue;
+				}
+				entries.add(f);
+				total += size;
+			}
+		}
+		if (total <= m_MaxSize) {
+			return;
+		}
+		Collections.sort(entries, new Comparator<File>() {
+
+			@Override
+			public int compare(File f1, File f2) {
+				long t1 = f1.lastModified();
+				long t2 = f2.lastModified();
+				return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+			}
+		});
+		for (File f : entries) {
+			if (total <= m_MaxSize) {
+				break;
+			}
+			total -= getSize(f);
+			// 先删清单，正在恢复的构建会视为未命中
+			new File(f, BuildCacheIndex.NAME).delete();
+			delete(f);
+		}
+	}
+
+	/* 键对应的目录 */
+	private File getEntry(String key) {
+		if (key.length() < 3 || !key.matches("[0-9a-zA-Z]+")) {
+			throw new IllegalArgumentException("构建缓存的键不正确:" + key);
+		}
+		return new File(new File(m_Directory, key.substring(0, 2)), key);
+	}
+
+	/* 条目的大小，没有清单时返回-1 */
+	private static long getSize(File entry) {
+		try (InputStream in = new FileInputStream(new File(entry, BuildCacheIndex.NAME))) {
+			return BuildCacheIndex.read(in).getSize();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/* 硬链接或复制到输出目录 */
+	private static void restoreFile(File src, File dest) throws IOException {
+		FileUtil.sureDir(dest);
+		// 可能是缓存中只读文件的硬链接，先直接删（改了权限缓存中的文件也会变），删不掉（如Windows）再改为可写
+		if (dest.exists() && !dest.delete()) {
+			dest.setWritable(true);
+			Files.delete(dest.toPath());
+		}
+		try {
+			Files.createLink(dest.toPath(), src.toPath());
+			return;
+		} catch (IOException | UnsupportedOperationException e) {
+			// 不能硬链接时复制
+		}
+		File temp = new File(dest.getAbsolutePath() + TEMP_SUFFIX);
+		try {
+			Files.copy(src.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			temp.setWritable(true);
+			Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/* 删除目录及其下的文件 */
+	private static void delete(File f) {
+		File[] fs = f.listFiles();
+		if (null != fs) {
+			for (File c : fs) {
+				delete(c);
+			}
+		}
+		if (!f.delete()) {
+			f.setWritable(true);
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * 逐层遍历目录
+ * <p>
+ * 每次只列出当前目录的子项，边遍历边返回，不像{@link org.codehaus.plexus.util.DirectoryScanner}那样先收集整棵目录树，
+ * 内存占用只与目录深度及单个目录的子项数有关。返回的顺序为按名称排序的深度优先顺序（目录在其子项之前），与文件系统无关。
+ * <p>
+ * 包含与排除由编译好的{@link FileSelector}判断，每层目录记住匹配状态，子项只需推进一段；
+ * 不可能包含任何文件或已整个排除的目录不再进入
+ *
+ * @author daibo
+ *
+ */
+public class DirectoryWalker {
+	/** 根目录 */
+	private final File m_Base;
+	/** 遍历中的各层目录 */
+	private final ArrayDeque<Level> m_Levels;
+
+	/**
+	 * 构造
+	 *
+	 * @param base     根目录
+	 * @param includes 包含的模式，为空时包含全部
+	 * @param excludes 排除的模式
+	 */
+	public DirectoryWalker(File base, String[] includes, String[] excludes) {
+		this(base, FileSelector.compile(includes, excludes));
+	}
+
+	/**
+	 * 构造
+	 *
+	 * @param base     根目录
+	 * @param selector 包含与排除规则
+	 */
+	public DirectoryWalker(File base, FileSelector selector) {
+		m_Base = base;
+		m_Levels = new ArrayDeque<Level>();
+		push(base, "", selector.getIncludes().start(), selector.getExcludes().start());
+	}
+
+	/**
+	 * 下一个包含的文件或目录
+	 *
+	 * @return 相对根目录的路径，以“/”分隔，目录以“/”结尾，遍历完返回null
+	 */
+	public String next() {
+		while (!m_Levels.isEmpty()) {
+			Level level = m_Levels.peek();
+			if (level.index >= level.names.length) {
+				m_Levels.pop();
+				continue;
+			}
+			String name = level.names[level.index++];
+			GlobMatcher.State include = level.include.next(name);
+			GlobMatcher.State exclude = level.exclude.next(name);
+			if (exclude.matchesAll()) {
+				// 本身及其下全部排除，目录也不用进入
+				continue;
+			}
+			boolean included = include.matches() && !exclude.matches();
+			String path = level.path + name;
+			File f = new File(level.dir, name);
+			if (f.isDirectory()) {
+				if (!include.isDead()) {
+					push(f, path + "/", include, exclude);
+				}
+				if (included) {
+					return path + "/";
+				}
+			} else if (included) {
+				return path;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 根目录
+	 *
+	 * @return 目录
+	 */
+	public File getBase() {
+		return m_Base;
+	}
+
+	private void push(File dir, String path, GlobMatcher.State include, GlobMatcher.State exclude) {
+		String[] names = dir.list();
+		if (null == names || names.length == 0) {
+			return;
+		}
+		Arrays.sort(names);
+		m_Levels.push(new Level(dir, path, names, include, exclude));
+	}
+
+	/**
+	 * 遍历中的一层目录
+	 */
+	static class Level {
+		/** 目录 */
+		final File dir;
+		/** 相对根目录的路径，以“/”结尾 */
+		final String path;
+		/** 排好序的子项 */
+		final String[] names;
+		/** 目录的包含匹配状态 */
+		final GlobMatcher.State include;
+		/** 目录的排除匹配状态 */
+		final GlobMatcher.State exclude;
+		/** 下一个子项 */
+		int index;
+
+		Level(File dir, String path, String[] names, GlobMatcher.State include, GlobMatcher.State exclude) {
+			this.dir = dir;
+			this.path = path;
+			this.names = names;
+			this.include = include;
+			this.exclude = exclude;
+		}
+	}
+}
@@ -20,19 +20,30 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.URLEncoder;
 import java.util.concurrent.TimeUnit;
 
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.apache.commons.codec.binary.Base64;
+
 import cn.weforward.buildplugin.UploadProgressBar;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.HttpRequestEncoder;
 import io.netty.handler.codec.http.HttpResponseDecoder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 
 /**
@@ -42,6 +53,56 @@ import io.netty.handler.timeout.IdleStateHandler;
  *
  */
 public class DistUtil {
+	/** 默认的发送缓冲低水位，广域网上太小会使发送缓冲区在恢复写出前就已排空 */
+	public static final int DEFAULT_LOW_WATER_MARK = 1024 * 1024;
+	/** 默认的发送缓冲高水位 */
+	public static final int DEFAULT_HIGH_WATER_MARK = 4 * 1024 * 1024;
+	/** 预检时服务端确认已有内容的响应头 */
+	public static final String CONTENT_SHA256_HEADER = "X-Content-Sha256";
+	/** 预检的超时，预检不传文件内容，很快就应有响应 */
+	private static final int PREFLIGHT_TIMEOUT = 10 * 1000;
+
+	/**
+	 * 上传前的预检：把文件的sha256与大小告诉服务端，服务端已有相同内容（如之前的流水线或其它标签上传过）时直接关联到本次的地址，
+	 * 不必再传文件内容
+	 * <p>
+	 * 约定：GET &lt;disturl&gt;&lt;文件名&gt;?link&amp;sha256=&lt;16进制&gt;&amp;size=&lt;字节数&gt;；
+	 * 已关联时响应2xx并在{@value #CONTENT_SHA256_HEADER}头中回应该sha256，没有该内容时响应404。
+	 * <p>
+	 * 旧服务端只以POST/PUT接收上传，不会把GET当作上传：它们对该地址响应404/405，或忽略查询参数按下载处理，
+	 * 都不会带{@value #CONTENT_SHA256_HEADER}头，按需要上传处理。预检不读响应体，按下载处理时也只读到响应头就断开，
+	 * 不跟随重定向
+	 * 
+	 * @param disturl  上传链接
+	 * @param file     文件
+	 * @param sha256   文件内容的sha256，16进制
+	 * @param username 用户名
+	 * @param password 密码
+	 * @return 服务端已有该内容并已关联时返回true，需要上传时返回false
+	 * @throws IOException IO异常
+	 */
+	public static boolean linkExisting(String disturl, File file, String sha256, String username, String password)
+			throws IOException {
+		String url = disturl + URLEncoder.encode(file.getName(), "UTF-8").replace("+", "%20") + "?link&sha256="
+				+ sha256 + "&size=" + file.length();
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		try {
+			conn.setRequestMethod("GET");
+			conn.setUseCaches(false);
+			conn.setInstanceFollowRedirects(false);
+			conn.setConnectTimeout(PREFLIGHT_TIMEOUT);
+			conn.setReadTimeout(PREFLIGHT_TIMEOUT);
+			if (!StringUtil.isEmpty(username) && !StringUtil.isEmpty(password)) {
+				String s = username + ":" + password;
+				conn.setRequestProperty("Authorization",
+						"Basic " + new String(Base64.encodeBase64(s.getBytes(JarWriter.UTF_8)), JarWriter.UTF_8));
+			}
+			int code = conn.getResponseCode();
+			return code >= 200 && code < 300 && sha256.equalsIgnoreCase(conn.getHeaderField(CONTENT_SHA256_HEADER));
+		} finally {
+			conn.disconnect();
+		}
+	}
 
 	/**
 	 * 文件上传的方法
@@ -56,6 +117,28 @@ public class DistUtil {
 	 */
 	public static void uploadFile(String disturl, File file, String username, String password,
 			UploadProgressBar progressBar) throws IOException, InterruptedException {
+		uploadFile(disturl, file, username, password, progressBar, DEFAULT_LOW_WATER_MARK, DEFAULT_HIGH_WATER_MARK);
+	}
+
+	/**
+	 * 文件上传的方法
+	 * 
+	 * @param disturl       上传链接
+	 * @param file          文件
+	 * @param username      用户名
+	 * @param password      密码
+	 * @param progressBar   进度条
+	 * @param lowWaterMark  发送缓冲低水位（字节），待发送的数据降到此值以下时继续写出
+	 * @param highWaterMark 发送缓冲高水位（字节），待发送的数据超过此值时暂停写出
+	 * @throws IOException          IO异常
+	 * @throws InterruptedException 中断异常
+	 */
+	public static void uploadFile(String disturl, File file, String username, String password,
+			UploadProgressBar progressBar, int lowWaterMark, int highWaterMark)
+			throws IOException, InterruptedException {
+		if (lowWaterMark <= 0 || highWaterMark < lowWaterMark) {
+			throw new IllegalArgumentException("水位不正确:" + lowWaterMark + "," + highWaterMark);
+		}
 		EventLoopGroup group = null;
 		URI uri;
 		try {
@@ -63,30 +146,41 @@ public class DistUtil {
 		} catch (URISyntaxException e) {
 			throw new UnsupportedOperationException(disturl + "不合法");
 		}
+		int port = uri.getPort();
+		if (port == -1) {
+			if (StringUtil.eq(uri.getScheme(), "https")) {
+				port = 443;
+			} else {
+				port = 80;
+			}
+		}
+		final String host = uri.getHost();
+		final int p = port;
+		// https时加上加密处理，文件内容不能直接发送，由处理器读到缓冲区写出
+		final SslContext sslContext = StringUtil.eq(uri.getScheme(), "https") ? SslContextBuilder.forClient().build()
+				: null;
 		try {
 			final UploadFileHandler handler = new UploadFileHandler(uri, file, progressBar, username, password);
 			group = new NioEventLoopGroup();
 			Bootstrap bootstrap = new Bootstrap();
 			bootstrap.group(group).channel(NioSocketChannel.class).option(ChannelOption.SO_KEEPALIVE, true)
+					.option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+							new WriteBufferWaterMark(lowWaterMark, highWaterMark))
+					// 默认把FileRegion估为0字节，不换掉的话水位对直接发送的文件不起作用
+					.option(ChannelOption.MESSAGE_SIZE_ESTIMATOR, FileRegionSizeEstimator.INSTANCE)
 					.handler(new ChannelInitializer<Channel>() {
 
 						@Override
 						protected void initChannel(Channel channel) throws Exception {
+							if (null != sslContext) {
+								channel.pipeline().addLast(newSslHandler(sslContext, channel.alloc(), host, p));
+							}
 							channel.pipeline().addLast(new IdleStateHandler(61, 30, 0, TimeUnit.SECONDS));
 							channel.pipeline().addLast("s-encoder", new HttpRequestEncoder());
 							channel.pipeline().addLast("s-decoder", new HttpResponseDecoder());
 							channel.pipeline().addLast(handler);
 						}
 					});
-			int port = uri.getPort();
-			if (port == -1) {
-				if (StringUtil.eq(uri.getScheme(), "https")) {
-					port = 443;
-				} else {
-					port = 80;
-				}
-			}
-			String host = uri.getHost();
 			ChannelFuture future = bootstrap.connect(host, port).sync();
 			future.channel().closeFuture().sync();
 		} finally {
@@ -97,6 +191,49 @@ public class DistUtil {
 		}
 	}
 
+	/**
+	 * 可续传的分块上传，中断后只补传服务端缺少的块，服务端的约定见{@link ResumableUploader}
+	 * 
+	 * @param disturl      上传链接
+	 * @param file         文件
+	 * @param username     用户名
+	 * @param password     密码
+	 * @param progressBar  进度条
+	 * @param chunkSize    块大小（字节），不大于0时为默认值
+	 * @param stallTimeout 停滞时间（毫秒），超过此时间没有进展即断开重试，不大于0时为默认值
+	 * @throws IOException          IO异常
+	 * @throws InterruptedException 中断异常
+	 */
+	public static void uploadFileResumable(String disturl, File file, String username, String password,
+			UploadProgressBar progressBar, int chunkSize, int stallTimeout) throws IOException, InterruptedException {
+		uploadFileResumable(disturl, file, username, password, progressBar, chunkSize, stallTimeout, 1);
+	}
+
+	/**
+	 * 可续传的分块上传，多个连接同时上传不同的块，由服务端在完成上传时拼接，服务端的约定见{@link ResumableUploader}
+	 * 
+	 * @param disturl      上传链接
+	 * @param file         文件
+	 * @param username     用户名
+	 * @param password     密码
+	 * @param progressBar  进度条，汇总所有连接的进度
+	 * @param chunkSize    块大小（字节），不大于0时为默认值
+	 * @param stallTimeout 停滞时间（毫秒），超过此时间没有进展即断开重试，不大于0时为默认值
+	 * @param connections  连接数，共用一个事件循环组
+	 * @throws IOException          IO异常
+	 * @throws InterruptedException 中断异常
+	 */
+	public static void uploadFileResumable(String disturl, File file, String username, String password,
+			UploadProgressBar progressBar, int chunkSize, int stallTimeout, int connections)
+			throws IOException, InterruptedException {
+		ResumableUploader uploader = new ResumableUploader(disturl, file, username, password);
+		uploader.setChunkSize(chunkSize);
+		uploader.setConnections(connections);
+		uploader.setStallTimeout(stallTimeout);
+		uploader.setProgressBar(progressBar);
+		uploader.upload();
+	}
+
 	/**
 	 * 文件上传的方法
 	 * 
@@ -181,4 +318,39 @@ public class DistUtil {
 		}
 	}
 
+	/**
+	 * 创建客户端的加密处理器并校验证书的主机名
+	 * <p>
+	 * SslContext默认只校验证书链，不校验证书是否签发给要连接的主机，任何持有有效证书的服务都能冒充发布服务拿到文件与账号密码
+	 * 
+	 * @param sslContext 加密上下文
+	 * @param alloc      缓冲区分配器
+	 * @param host       主机
+	 * @param port       端口
+	 * @return 加密处理器
+	 */
+	static SslHandler newSslHandler(SslContext sslContext, ByteBufAllocator alloc, String host, int port) {
+		SslHandler handler = sslContext.newHandler(alloc, host, port);
+		SSLEngine engine = handler.engine();
+		SSLParameters params = engine.getSSLParameters();
+		params.setEndpointIdentificationAlgorithm("HTTPS");
+		engine.setSSLParameters(params);
+		return handler;
+	}
+
+	/**
+	 * 请求的Host头，端口不是协议的默认端口（http为80，https为443）时带上端口，否则按端口区分的虚拟主机或代理会找错服务
+	 * 
+	 * @param uri 请求地址
+	 * @return 主机[:端口]
+	 */
+	static String getHostHeader(URI uri) {
+		int port = uri.getPort();
+		int defaultPort = StringUtil.eq(uri.getScheme(), "https") ? 443 : 80;
+		if (port == -1 || port == defaultPort) {
+			return uri.getHost();
+		}
+		return uri.getHost() + ":" + port;
+	}
+
 }
@@ -0,0 +1,51 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import io.netty.channel.DefaultMessageSizeEstimator;
+import io.netty.channel.FileRegion;
+import io.netty.channel.MessageSizeEstimator;
+
+/**
+ * 计入{@link FileRegion}大小的消息大小估算
+ * <p>
+ * netty默认把FileRegion估为0字节，直接发送文件时待发送的数据量不会增长，通道始终可写，
+ * 发送缓冲的水位不起作用。按FileRegion要发送的字节数估算后，按可写状态控制流量的上传才会在高水位停下
+ *
+ * @author daibo
+ *
+ */
+final class FileRegionSizeEstimator implements MessageSizeEstimator {
+	/** 实例，无状态可共用 */
+	static final FileRegionSizeEstimator INSTANCE = new FileRegionSizeEstimator();
+
+	/** 估算 */
+	private final Handle m_Handle;
+
+	private FileRegionSizeEstimator() {
+		final Handle other = DefaultMessageSizeEstimator.DEFAULT.newHandle();
+		m_Handle = new Handle() {
+
+			@Override
+			public int size(Object msg) {
+				if (msg instanceof FileRegion) {
+					return (int) Math.min(Integer.MAX_VALUE, ((FileRegion) msg).count());
+				}
+				return other.size(msg);
+			}
+		};
+	}
+
+	@Override
+	public Handle newHandle() {
+		return m_Handle;
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.plexus.util.AbstractScanner;
+
+/**
+ * 编译后的包含与排除规则，语义同{@link org.codehaus.plexus.util.DirectoryScanner}（区分大小写，总是排除
+ * {@link AbstractScanner#DEFAULTEXCLUDES}）
+ * <p>
+ * 编译结果按规则缓存，同一次构建中主jar、源码jar与fat jar对同一组规则的遍历共用一份
+ *
+ * @author daibo
+ *
+ */
+public class FileSelector {
+	/** 缓存的编译结果数 */
+	private static final int CACHE_SIZE = 32;
+	/** 编译结果缓存 */
+	private static final Map<List<String>, FileSelector> CACHE = new LinkedHashMap<List<String>, FileSelector>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<List<String>, FileSelector> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** 包含的模式 */
+	private final GlobMatcher m_Includes;
+	/** 排除的模式 */
+	private final GlobMatcher m_Excludes;
+
+	private FileSelector(GlobMatcher includes, GlobMatcher excludes) {
+		m_Includes = includes;
+		m_Excludes = excludes;
+	}
+
+	/**
+	 * 编译规则，相同的规则返回同一个对象
+	 *
+	 * @param includes 包含的模式，为空时包含全部
+	 * @param excludes 排除的模式
+	 * @return 规则
+	 */
+	public static FileSelector compile(String[] includes, String[] excludes) {
+		if (null == includes || includes.length == 0) {
+			includes = new String[] { "**" };
+		}
+		List<String> key = new ArrayList<String>();
+		key.addAll(Arrays.asList(includes));
+		// 用null分隔包含与排除
+		key.add(null);
+		if (null != excludes) {
+			key.addAll(Arrays.asList(excludes));
+		}
+		synchronized (CACHE) {
+			FileSelector selector = CACHE.get(key);
+			if (null == selector) {
+				List<String> list = new ArrayList<String>(key.subList(includes.length + 1, key.size()));
+				list.addAll(Arrays.asList(AbstractScanner.DEFAULTEXCLUDES));
+				selector = new FileSelector(GlobMatcher.compile(includes, true),
+						GlobMatcher.compile(list.toArray(new String[list.size()]), true));
+				CACHE.put(key, selector);
+			}
+			return selector;
+		}
+	}
+
+	/**
+	 * 包含规则
+	 *
+	 * @return 匹配器
+	 */
+	public GlobMatcher getIncludes() {
+		return m_Includes;
+	}
+
+	/**
+	 * 排除规则
+	 *
+	 * @return 匹配器
+	 */
+	public GlobMatcher getExcludes() {
+		return m_Excludes;
+	}
+
+	/**
+	 * 路径是否被选中
+	 *
+	 * @param path 以“/”分隔的相对路径
+	 * @return 包含且未排除时返回true
+	 */
+	public boolean isSelected(String path) {
+		return m_Includes.matches(path) && !m_Excludes.matches(path);
+	}
+}
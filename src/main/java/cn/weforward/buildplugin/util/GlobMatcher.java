@@ -0,0 +1,396 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * 编译后的ant风格路径模式
+ * <p>
+ * 所有模式按“/”分段合并成一棵前缀树（相同的前缀只比较一次，不含通配符的段按散列查找），匹配时按路径逐段推进状态，
+ * 遍历目录时每层只需推进一段，还可由状态判断目录下是否还可能匹配、是否全部匹配，从而整个跳过目录。
+ * 语义同{@link SelectorUtils#matchPath(String, String, String, boolean)}：“**”匹配零或多段，“*”与“?”只在段内匹配；
+ * “%regex[...]”模式无法编译，按整个路径单独匹配
+ *
+ * @author daibo
+ *
+ */
+public class GlobMatcher {
+	/** 正则模式的前缀 */
+	private static final String REGEX_PREFIX = "%regex[";
+	/** ant模式的前缀 */
+	private static final String ANT_PREFIX = "%ant[";
+
+	/** 前缀树的根 */
+	private final Node m_Root;
+	/** 是否区分大小写 */
+	private final boolean m_CaseSensitive;
+	/** 无法编译的正则模式 */
+	private final List<String> m_Regexes;
+	/** 初始状态 */
+	private final State m_Start;
+
+	private GlobMatcher(Node root, boolean caseSensitive, List<String> regexes) {
+		m_Root = root;
+		m_CaseSensitive = caseSensitive;
+		m_Regexes = regexes;
+		List<Node> nodes = new ArrayList<Node>();
+		closure(m_Root, nodes);
+		m_Start = new State(this, nodes.toArray(new Node[nodes.size()]), regexes.isEmpty() ? null : "");
+	}
+
+	/**
+	 * 编译模式
+	 *
+	 * @param patterns      模式，以“/”或“\”分隔，以分隔符结尾时同“**”结尾；为null时不匹配任何路径
+	 * @param caseSensitive 是否区分大小写
+	 * @return 匹配器
+	 */
+	public static GlobMatcher compile(String[] patterns, boolean caseSensitive) {
+		Node root = new Node();
+		List<String> regexes = new ArrayList<String>();
+		if (null != patterns) {
+			for (String p : patterns) {
+				if (null == p) {
+					continue;
+				}
+				p = p.trim();
+				if (p.startsWith(REGEX_PREFIX) && p.endsWith("]")) {
+					regexes.add(p);
+					continue;
+				}
+				if (p.startsWith(ANT_PREFIX) && p.endsWith("]")) {
+					p = p.substring(ANT_PREFIX.length(), p.length() - 1);
+				}
+				add(root, p, caseSensitive);
+			}
+		}
+		return new GlobMatcher(root, caseSensitive, regexes);
+	}
+
+	/**
+	 * 初始状态，即空路径的状态
+	 *
+	 * @return 状态
+	 */
+	public State start() {
+		return m_Start;
+	}
+
+	/**
+	 * 路径是否匹配任一模式
+	 *
+	 * @param path 以“/”分隔的路径
+	 * @return 匹配返回true
+	 */
+	public boolean matches(String path) {
+		State s = m_Start;
+		int start = 0;
+		while (start <= path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			if (end > start) {
+				s = s.next(path.substring(start, end));
+				if (end < path.length() && s.isDead()) {
+					return false;
+				}
+			}
+			start = end + 1;
+		}
+		return s.matches();
+	}
+
+	/* 把模式加入前缀树 */
+	private static void add(Node root, String pattern, boolean caseSensitive) {
+		String p = pattern.replace('\\', '/');
+		if (p.endsWith("/")) {
+			p += "**";
+		}
+		if (!caseSensitive) {
+			p = p.toLowerCase(Locale.ROOT);
+		}
+		Node node = root;
+		for (String seg : p.split("/")) {
+			if (seg.isEmpty()) {
+				continue;
+			}
+			if ("**".equals(seg)) {
+				if (!node.doubleStar) {
+					// 连续的“**”等同一个
+					if (null == node.any) {
+						node.any = new Node();
+						node.any.doubleStar = true;
+					}
+					node = node.any;
+				}
+				continue;
+			}
+			if (seg.indexOf('*') < 0 && seg.indexOf('?') < 0) {
+				if (null == node.literals) {
+					node.literals = new HashMap<String, Node>();
+				}
+				Node child = node.literals.get(seg);
+				if (null == child) {
+					child = new Node();
+					node.literals.put(seg, child);
+				}
+				node = child;
+				continue;
+			}
+			if (null == node.globs) {
+				node.globs = new ArrayList<Glob>();
+			}
+			Glob glob = null;
+			for (Glob g : node.globs) {
+				if (g.pattern.equals(seg)) {
+					glob = g;
+					break;
+				}
+			}
+			if (null == glob) {
+				glob = new Glob(seg);
+				node.globs.add(glob);
+			}
+			node = glob.node;
+		}
+		node.accept = true;
+	}
+
+	/* 节点及其经“**”匹配零段可到达的节点 */
+	private static void closure(Node node, List<Node> nodes) {
+		for (Node n : nodes) {
+			if (n == node) {
+				return;
+			}
+		}
+		nodes.add(node);
+		if (null != node.any) {
+			closure(node.any, nodes);
+		}
+	}
+
+	/* 推进一段 */
+	State next(State from, String segment) {
+		String seg = m_CaseSensitive ? segment : segment.toLowerCase(Locale.ROOT);
+		List<Node> nodes = new ArrayList<Node>();
+		for (Node n : from.nodes) {
+			if (n.doubleStar) {
+				closure(n, nodes);
+			}
+			if (null != n.literals) {
+				Node child = n.literals.get(seg);
+				if (null != child) {
+					closure(child, nodes);
+				}
+			}
+			if (null != n.globs) {
+				for (Glob g : n.globs) {
+					if (g.matches(seg)) {
+						closure(g.node, nodes);
+					}
+				}
+			}
+		}
+		String path = null;
+		if (null != from.path) {
+			path = from.path.isEmpty() ? segment : from.path + "/" + segment;
+		}
+		return new State(this, nodes.toArray(new Node[nodes.size()]), path);
+	}
+
+	/* 正则模式是否匹配 */
+	boolean matchesRegex(String path) {
+		for (String p : m_Regexes) {
+			if (SelectorUtils.matchPath(p, path, "/", m_CaseSensitive)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 匹配状态，不可变，可在多个线程中共用
+	 */
+	public static class State {
+		/** 所属匹配器 */
+		final GlobMatcher matcher;
+		/** 当前所在的节点 */
+		final Node[] nodes;
+		/** 已匹配的路径，只在有正则模式时记录 */
+		final String path;
+
+		State(GlobMatcher matcher, Node[] nodes, String path) {
+			this.matcher = matcher;
+			this.nodes = nodes;
+			this.path = path;
+		}
+
+		/**
+		 * 推进一段
+		 *
+		 * @param segment 路径中的一段（文件或目录名）
+		 * @return 新状态
+		 */
+		public State next(String segment) {
+			return matcher.next(this, segment);
+		}
+
+		/**
+		 * 当前路径是否匹配
+		 *
+		 * @return 匹配返回true
+		 */
+		public boolean matches() {
+			for (Node n : nodes) {
+				if (n.accept) {
+					return true;
+				}
+			}
+			return null != path && matcher.matchesRegex(path);
+		}
+
+		/**
+		 * 当前路径下的任何路径都不可能匹配
+		 *
+		 * @return 不可能匹配返回true
+		 */
+		public boolean isDead() {
+			if (null != path) {
+				return false;
+			}
+			for (Node n : nodes) {
+				if (n.doubleStar || null != n.literals || null != n.globs) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * 当前路径及其下的所有路径都匹配（如已匹配“a/**”中的“a”）
+		 *
+		 * @return 全部匹配返回true
+		 */
+		public boolean matchesAll() {
+			for (Node n : nodes) {
+				if (n.doubleStar && n.accept) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * 前缀树的节点
+	 */
+	static class Node {
+		/** 不含通配符的下一段 */
+		Map<String, Node> literals;
+		/** 含通配符的下一段 */
+		List<Glob> globs;
+		/** 下一段为“**” */
+		Node any;
+		/** 本节点是否“**”，可匹配任意多段 */
+		boolean doubleStar;
+		/** 是否有模式在本节点结束 */
+		boolean accept;
+	}
+
+	/**
+	 * 含“*”或“?”的段
+	 */
+	static class Glob {
+		/** 任意 */
+		private static final int ANY = 0;
+		/** 以固定内容结尾，如“*.class” */
+		private static final int SUFFIX = 1;
+		/** 以固定内容开头，如“foo*” */
+		private static final int PREFIX = 2;
+		/** 其它 */
+		private static final int OTHER = 3;
+
+		/** 模式 */
+		final String pattern;
+		/** 匹配后到达的节点 */
+		final Node node;
+		/** 类型 */
+		private final int m_Kind;
+		/** 前缀或后缀 */
+		private final String m_Fixed;
+
+		Glob(String pattern) {
+			this.pattern = pattern;
+			this.node = new Node();
+			String rest = pattern.substring(1);
+			if ("*".equals(pattern)) {
+				m_Kind = ANY;
+				m_Fixed = null;
+			} else if (pattern.charAt(0) == '*' && rest.indexOf('*') < 0 && rest.indexOf('?') < 0) {
+				m_Kind = SUFFIX;
+				m_Fixed = rest;
+			} else if (pattern.indexOf('*') == pattern.length() - 1 && pattern.indexOf('?') < 0) {
+				m_Kind = PREFIX;
+				m_Fixed = pattern.substring(0, pattern.length() - 1);
+			} else {
+				m_Kind = OTHER;
+				m_Fixed = null;
+			}
+		}
+
+		boolean matches(String s) {
+			switch (m_Kind) {
+			case ANY:
+				return true;
+			case SUFFIX:
+				return s.endsWith(m_Fixed);
+			case PREFIX:
+				return s.startsWith(m_Fixed);
+			default:
+				return wildcard(pattern, s);
+			}
+		}
+
+		/* “*”与“?”的匹配，回溯到最近的“*” */
+		private static boolean wildcard(String p, String s) {
+			int pi = 0;
+			int si = 0;
+			int star = -1;
+			int mark = 0;
+			while (si < s.length()) {
+				if (pi < p.length() && (p.charAt(pi) == '?' || p.charAt(pi) == s.charAt(si))) {
+					pi++;
+					si++;
+				} else if (pi < p.length() && p.charAt(pi) == '*') {
+					star = pi++;
+					mark = si;
+				} else if (star >= 0) {
+					pi = star + 1;
+					si = ++mark;
+				} else {
+					return false;
+				}
+			}
+			while (pi < p.length() && p.charAt(pi) == '*') {
+				pi++;
+			}
+			return pi == p.length();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * http构建缓存
+ * <p>
+ * 约定简单：GET &lt;url&gt;/&lt;键&gt;/&lt;路径&gt;取文件，404为不存在；PUT同样的地址存文件。清单（index）最后存入，
+ * 取到清单才算命中。任何能按路径存取文件的http服务（如nginx的WebDAV、对象存储的网关）都可以作为后端
+ *
+ * @author daibo
+ *
+ */
+public class HttpBuildCache implements BuildCache {
+	/** 连接超时 */
+	private static final int CONNECT_TIMEOUT = 10 * 1000;
+	/** 读取超时 */
+	private static final int READ_TIMEOUT = 5 * 60 * 1000;
+	/** 缓冲区大小 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** 地址，以“/”结尾 */
+	private final String m_Url;
+	/** 认证头，为null时不认证 */
+	private final String m_Authorization;
+
+	/**
+	 * 构造
+	 *
+	 * @param url      地址
+	 * @param username 用户名，为空时不认证
+	 * @param password 密码
+	 */
+	public HttpBuildCache(String url, String username, String password) {
+		m_Url = url.endsWith("/") ? url : url + "/";
+		if (StringUtil.isEmpty(username)) {
+			m_Authorization = null;
+		} else {
+			String s = username + ":" + (null == password ? "" : password);
+			m_Authorization = "Basic " + new String(Base64.encodeBase64(s.getBytes(JarWriter.UTF_8)), JarWriter.UTF_8);
+		}
+	}
+
+	@Override
+	public boolean restore(String key, File dir) throws IOException {
+		HttpURLConnection conn = open(key, BuildCacheIndex.NAME, "GET");
+		BuildCacheIndex index;
+		try {
+			if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+				return false;
+			}
+			check(conn);
+			try (InputStream in = conn.getInputStream()) {
+				index = BuildCacheIndex.read(in);
+			}
+		} finally {
+			conn.disconnect();
+		}
+		List<File> temps = new ArrayList<File>();
+		try {
+			// 先全部下载到临时文件，都成功了才替换
+			for (Entry<String, Long> e : index.files.entrySet()) {
+				File dest = new File(dir, e.getKey());
+				File temp = new File(dest.getAbsolutePath() + ".tmp");
+				FileUtil.sureDir(temp);
+				temps.add(temp);
+				if (!download(key, e.getKey(), temp) || temp.length() != e.getValue()) {
+					return false;
+				}
+			}
+			int i = 0;
+			for (String name : index.files.keySet()) {
+				Files.move(temps.get(i++).toPath(), new File(dir, name).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			return true;
+		} finally {
+			for (File f : temps) {
+				f.delete();
+			}
+		}
+	}
+
+	@Override
+	public void store(String key, File dir, List<String> names) throws IOException {
+		BuildCacheIndex index = new BuildCacheIndex();
+		for (String name : names) {
+			File f = new File(dir, name);
+			try (InputStream in = new FileInputStream(f)) {
+				upload(key, name, in, f.length());
+			}
+			index.add(name, f);
+		}
+		byte[] bs = index.toBytes();
+		upload(key, BuildCacheIndex.NAME, new ByteArrayInputStream(bs), bs.length);
+	}
+
+	/* 下载文件，不存在时返回false */
+	private boolean download(String key, String name, File file) throws IOException {
+		HttpURLConnection conn = open(key, name, "GET");
+		try {
+			if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+				return false;
+			}
+			check(conn);
+			try (InputStream in = conn.getInputStream(); OutputStream out = new FileOutputStream(file)) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int l;
+				while ((l = in.read(buffer)) > 0) {
+					out.write(buffer, 0, l);
+				}
+			}
+			return true;
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	/* 上传文件 */
+	private void upload(String key, String name, InputStream in, long length) throws IOException {
+		HttpURLConnection conn = open(key, name, "PUT");
+		try {
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(length);
+			conn.setRequestProperty("Content-Type", "application/octet-stream");
+			try (OutputStream out = conn.getOutputStream()) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int l;
+				while ((l = in.read(buffer)) > 0) {
+					out.write(buffer, 0, l);
+				}
+			}
+			check(conn);
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private HttpURLConnection open(String key, String name, String method) throws IOException {
+		StringBuilder sb = new StringBuilder(m_Url).append(URLEncoder.encode(key, "UTF-8"));
+		for (String seg : name.split("/")) {
+			sb.append('/').append(URLEncoder.encode(seg, "UTF-8").replace("+", "%20"));
+		}
+		HttpURLConnection conn = (HttpURLConnection) new URL(sb.toString()).openConnection();
+		conn.setRequestMethod(method);
+		conn.setUseCaches(false);
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setReadTimeout(READ_TIMEOUT);
+		if (null != m_Authorization) {
+			conn.setRequestProperty("Authorization", m_Authorization);
+		}
+		return conn;
+	}
+
+	private static void check(HttpURLConnection conn) throws IOException {
+		int code = conn.getResponseCode();
+		if (code < 200 || code >= 300) {
+			throw new IOException(conn.getRequestMethod() + " " + conn.getURL() + "失败，响应码" + code);
+		}
+	}
+}
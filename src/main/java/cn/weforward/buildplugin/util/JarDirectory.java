@@ -0,0 +1,380 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * jar(zip)文件的中央目录
+ * <p>
+ * 只读取中央目录，不解压数据，可按条目取出压缩后的原始数据用于直接复制，支持Zip64，非线程安全
+ *
+ * @author daibo
+ *
+ */
+public class JarDirectory implements Closeable {
+	/** 中央目录结束记录的最小长度 */
+	private static final int END_LENGTH = 22;
+	/** 本地文件头的固定长度 */
+	private static final int LOCAL_LENGTH = 30;
+	/** 中央目录记录的固定长度 */
+	private static final int CENTRAL_LENGTH = 46;
+	/** Zip64中央目录结束定位记录的长度 */
+	private static final int ZIP64_LOCATOR_LENGTH = 20;
+	/** Zip64中央目录结束记录的固定长度 */
+	private static final int ZIP64_END_LENGTH = 56;
+
+	/** 文件 */
+	private final File m_File;
+	/** 随机读取 */
+	private final RandomAccessFile m_Raf;
+	/** 按顺序的条目 */
+	private final List<Item> m_Items;
+	/** 按名称索引的条目 */
+	private final Map<String, Item> m_Index;
+	/** 文件注释 */
+	private final String m_Comment;
+
+	private JarDirectory(File file, RandomAccessFile raf, List<Item> items, String comment) {
+		m_File = file;
+		m_Raf = raf;
+		m_Items = items;
+		m_Comment = comment;
+		m_Index = new HashMap<String, Item>(items.size() * 2);
+		for (Item item : items) {
+			if (!m_Index.containsKey(item.name)) {
+				m_Index.put(item.name, item);
+			}
+		}
+	}
+
+	/**
+	 * 打开jar文件，读取其中央目录
+	 *
+	 * @param file jar文件
+	 * @return 中央目录
+	 * @throws IOException 文件不存在或格式不正确
+	 */
+	public static JarDirectory open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			StringBuilder comment = new StringBuilder();
+			List<Item> items = readItems(raf, comment);
+			JarDirectory dir = new JarDirectory(file, raf, items, comment.toString());
+			raf = null;
+			return dir;
+		} finally {
+			if (null != raf) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * 文件
+	 *
+	 * @return 文件
+	 */
+	public File getFile() {
+		return m_File;
+	}
+
+	/**
+	 * 文件注释
+	 *
+	 * @return 注释，没有时为空字符串
+	 */
+	public String getComment() {
+		return m_Comment;
+	}
+
+	/**
+	 * 按名称取条目
+	 *
+	 * @param name 条目名
+	 * @return 条目，不存在时返回null
+	 */
+	public Item get(String name) {
+		return m_Index.get(name);
+	}
+
+	/**
+	 * 所有条目，按在中央目录中的顺序
+	 *
+	 * @return 条目
+	 */
+	public List<Item> getItems() {
+		return Collections.unmodifiableList(m_Items);
+	}
+
+	/**
+	 * 条目（压缩后）数据在文件中的开始位置
+	 *
+	 * @param item 条目
+	 * @return 位置
+	 * @throws IOException IO异常
+	 */
+	public long getDataOffset(Item item) throws IOException {
+		if (item.dataOffset >= 0) {
+			return item.dataOffset;
+		}
+		byte[] bs = new byte[LOCAL_LENGTH];
+		m_Raf.seek(item.offset);
+		m_Raf.readFully(bs);
+		if (getInt(bs, 0) != JarWriter.LOCSIG) {
+			throw new IOException(m_File + "中" + item.name + "的本地文件头不正确");
+		}
+		item.dataOffset = item.offset + LOCAL_LENGTH + getShort(bs, 26) + getShort(bs, 28);
+		return item.dataOffset;
+	}
+
+	/**
+	 * 打开条目压缩后的原始数据
+	 *
+	 * @param item 条目
+	 * @return 数据流，读取期间不能再使用本对象读其它条目
+	 * @throws IOException IO异常
+	 */
+	public InputStream openRaw(Item item) throws IOException {
+		return new RegionInputStream(m_Raf, getDataOffset(item), item.csize);
+	}
+
+	/**
+	 * 文件通道，用于按{@link #getDataOffset(Item)}直接复制条目的原始数据
+	 *
+	 * @return 通道
+	 */
+	public FileChannel getChannel() {
+		return m_Raf.getChannel();
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_Raf.close();
+	}
+
+	/* 读取中央目录，文件注释追加到comment */
+	private static List<Item> readItems(RandomAccessFile raf, StringBuilder comment) throws IOException {
+		long length = raf.length();
+		if (length < END_LENGTH) {
+			throw new IOException("不是有效的zip文件");
+		}
+		int tail = (int) Math.min(length, 0xFFFF + END_LENGTH);
+		byte[] bs = new byte[tail];
+		raf.seek(length - tail);
+		raf.readFully(bs);
+		int end = -1;
+		for (int i = tail - END_LENGTH; i >= 0; i--) {
+			if (getInt(bs, i) == JarWriter.ENDSIG) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			throw new IOException("找不到zip中央目录");
+		}
+		int commentLength = Math.min(getShort(bs, end + 20), tail - end - END_LENGTH);
+		comment.append(new String(bs, end + END_LENGTH, commentLength, JarWriter.UTF_8));
+		long count = getShort(bs, end + 10);
+		long size = getInt(bs, end + 12);
+		long start = getInt(bs, end + 16);
+		long locator = length - tail + end - ZIP64_LOCATOR_LENGTH;
+		if (locator >= 0) {
+			byte[] loc = new byte[ZIP64_LOCATOR_LENGTH];
+			raf.seek(locator);
+			raf.readFully(loc);
+			if (getInt(loc, 0) == JarWriter.ZIP64_LOCATORSIG) {
+				long pos = getLong(loc, 8);
+				if (pos < 0 || pos + ZIP64_END_LENGTH > locator) {
+					throw new IOException("zip64中央目录结束记录位置不正确");
+				}
+				byte[] end64 = new byte[ZIP64_END_LENGTH];
+				raf.seek(pos);
+				raf.readFully(end64);
+				if (getInt(end64, 0) != JarWriter.ZIP64_ENDSIG) {
+					throw new IOException("zip64中央目录结束记录不正确");
+				}
+				count = getLong(end64, 32);
+				size = getLong(end64, 40);
+				start = getLong(end64, 48);
+			}
+		}
+		if (start < 0 || size < 0 || start + size > length) {
+			throw new IOException("zip中央目录位置不正确");
+		}
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IOException("zip中央目录超出2G");
+		}
+		byte[] cen = new byte[(int) size];
+		raf.seek(start);
+		raf.readFully(cen);
+		List<Item> items = new ArrayList<Item>((int) Math.min(count, cen.length / CENTRAL_LENGTH));
+		int pos = 0;
+		while (pos + CENTRAL_LENGTH <= cen.length) {
+			if (getInt(cen, pos) != JarWriter.CENSIG) {
+				throw new IOException("zip中央目录记录不正确");
+			}
+			Item item = new Item();
+			item.method = getShort(cen, pos + 10);
+			item.time = getInt(cen, pos + 12);
+			item.crc = getInt(cen, pos + 16);
+			item.csize = getInt(cen, pos + 20);
+			item.size = getInt(cen, pos + 24);
+			int nlen = getShort(cen, pos + 28);
+			int xlen = getShort(cen, pos + 30);
+			int clen = getShort(cen, pos + 32);
+			item.offset = getInt(cen, pos + 42);
+			item.name = new String(cen, pos + CENTRAL_LENGTH, nlen, JarWriter.UTF_8);
+			if (item.size == JarWriter.ZIP64_MAGIC || item.csize == JarWriter.ZIP64_MAGIC
+					|| item.offset == JarWriter.ZIP64_MAGIC) {
+				readZip64(item, cen, pos + CENTRAL_LENGTH + nlen, xlen);
+			}
+			items.add(item);
+			pos += CENTRAL_LENGTH + nlen + xlen + clen;
+		}
+		return items;
+	}
+
+	/* 从扩展字段中读取Zip64的大小与位置，只有值为0xFFFFFFFF的才出现，按未压缩大小、压缩后大小、位置的顺序 */
+	private static void readZip64(Item item, byte[] bs, int off, int len) throws IOException {
+		int end = off + len;
+		while (off + 4 <= end) {
+			int id = getShort(bs, off);
+			int size = getShort(bs, off + 2);
+			off += 4;
+			if (id != JarWriter.ZIP64_EXTRA_ID) {
+				off += size;
+				continue;
+			}
+			int limit = Math.min(off + size, end);
+			if (item.size == JarWriter.ZIP64_MAGIC && off + 8 <= limit) {
+				item.size = getLong(bs, off);
+				off += 8;
+			}
+			if (item.csize == JarWriter.ZIP64_MAGIC && off + 8 <= limit) {
+				item.csize = getLong(bs, off);
+				off += 8;
+			}
+			if (item.offset == JarWriter.ZIP64_MAGIC && off + 8 <= limit) {
+				item.offset = getLong(bs, off);
+			}
+			return;
+		}
+		throw new IOException(item.name + "缺少zip64扩展字段");
+	}
+
+	static int getShort(byte[] bs, int off) {
+		return (bs[off] & 0xff) | ((bs[off + 1] & 0xff) << 8);
+	}
+
+	static long getInt(byte[] bs, int off) {
+		return (getShort(bs, off) | ((long) getShort(bs, off + 2) << 16)) & 0xFFFFFFFFL;
+	}
+
+	static long getLong(byte[] bs, int off) {
+		return getInt(bs, off) | (getInt(bs, off + 4) << 32);
+	}
+
+	/**
+	 * 中央目录中的条目
+	 */
+	public static class Item {
+		/** 条目名 */
+		String name;
+		/** 压缩方式 */
+		int method;
+		/** dos时间 */
+		long time;
+		/** crc32 */
+		long crc;
+		/** 未压缩大小 */
+		long size;
+		/** 压缩后大小 */
+		long csize;
+		/** 本地文件头位置 */
+		long offset;
+		/** 数据位置，未读取时为-1 */
+		long dataOffset = -1;
+
+		public String getName() {
+			return name;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		public long getDosTime() {
+			return time;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getCompressedSize() {
+			return csize;
+		}
+
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+	}
+
+	/**
+	 * 读取文件中一段区域的流
+	 */
+	static class RegionInputStream extends InputStream {
+		private final RandomAccessFile m_Raf;
+		private long m_Position;
+		private long m_Remaining;
+
+		RegionInputStream(RandomAccessFile raf, long position, long length) {
+			m_Raf = raf;
+			m_Position = position;
+			m_Remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] bs = new byte[1];
+			return read(bs, 0, 1) < 0 ? -1 : (bs[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (m_Remaining <= 0) {
+				return -1;
+			}
+			m_Raf.seek(m_Position);
+			int l = m_Raf.read(b, off, (int) Math.min(len, m_Remaining));
+			if (l > 0) {
+				m_Position += l;
+				m_Remaining -= l;
+			}
+			return l;
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 按可达性精简依赖包
+ * <p>
+ * 从主类、应用的所有类、保留规则、META-INF/services与spring.factories中声明的类出发，沿常量池中的引用找出依赖包中可达的类，
+ * 重写依赖包只保留可达的类（资源与META-INF下的内容都保留），压缩数据直接复制
+ *
+ * @author daibo
+ *
+ */
+public class JarMinimizer {
+	/** 应用的类文件目录 */
+	private final File m_ClassDirectory;
+	/** 精简后的依赖包存放目录 */
+	private final File m_OutputDirectory;
+	/** 主类 */
+	private String m_MainClass;
+	/** 保留的类，编译后的内部格式模式，如com/foo/** */
+	private GlobMatcher m_Keeps;
+	/** 各依赖包的精简结果 */
+	private final Map<File, Stat> m_Stats;
+
+	public JarMinimizer(File classDirectory, File outputDirectory) {
+		m_ClassDirectory = classDirectory;
+		m_OutputDirectory = outputDirectory;
+		m_Stats = new LinkedHashMap<File, Stat>();
+	}
+
+	/**
+	 * 设置主类
+	 *
+	 * @param mainClass 类名
+	 */
+	public void setMainClass(String mainClass) {
+		m_MainClass = mainClass;
+	}
+
+	/**
+	 * 设置保留的类（反射加载等无法分析到的）
+	 *
+	 * @param keeps 类名，如com.foo.**，可用通配符
+	 */
+	public void setKeeps(String[] keeps) {
+		if (null == keeps) {
+			m_Keeps = null;
+			return;
+		}
+		String[] patterns = new String[keeps.length];
+		for (int i = 0; i < keeps.length; i++) {
+			patterns[i] = keeps[i].replace('.', '/');
+		}
+		m_Keeps = GlobMatcher.compile(patterns, true);
+	}
+
+	/**
+	 * 精简依赖包
+	 *
+	 * @param libs 按加载顺序的依赖包
+	 * @return 依赖包与精简后的依赖包，没有可精简的类时为原文件
+	 * @throws IOException IO异常
+	 */
+	public Map<File, File> minimize(List<File> libs) throws IOException {
+		m_Stats.clear();
+		Map<String, File> owners = new HashMap<String, File>();
+		Map<File, ZipFile> zips = new LinkedHashMap<File, ZipFile>();
+		try {
+			List<String> roots = new ArrayList<String>();
+			for (File lib : libs) {
+				ZipFile zip = new ZipFile(lib);
+				zips.put(lib, zip);
+				Stat stat = new Stat();
+				m_Stats.put(lib, stat);
+				Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements()) {
+					ZipEntry e = entries.nextElement();
+					String name = e.getName();
+					if (isClass(name)) {
+						stat.classes++;
+						String c = name.substring(0, name.length() - 6);
+						if (!owners.containsKey(c)) {
+							owners.put(c, lib);
+						}
+					} else if (name.startsWith("META-INF/services/") && !e.isDirectory()) {
+						roots.add(name.substring("META-INF/services/".length()).replace('.', '/'));
+						readServices(zip, e, roots);
+					} else if (name.equals("META-INF/spring.factories")) {
+						readSpringFactories(zip, e, roots);
+					}
+				}
+			}
+			if (null != m_ClassDirectory && m_ClassDirectory.isDirectory()) {
+				roots.addAll(ClassReferences.readDirectory(m_ClassDirectory));
+				File services = new File(m_ClassDirectory, "META-INF/services");
+				File[] files = services.listFiles();
+				if (null != files) {
+					for (File f : files) {
+						roots.add(f.getName().replace('.', '/'));
+						try (InputStream in = new FileInputStream(f)) {
+							readLines(in, roots);
+						}
+					}
+				}
+			}
+			if (!StringUtil.isEmpty(m_MainClass)) {
+				roots.add(m_MainClass.replace('.', '/'));
+			}
+			if (null != m_Keeps) {
+				for (String c : owners.keySet()) {
+					if (m_Keeps.matches(c)) {
+						roots.add(c);
+					}
+				}
+			}
+			Set<String> reached = reach(roots, owners, zips);
+			Map<File, File> result = new LinkedHashMap<File, File>();
+			for (File lib : libs) {
+				Stat stat = m_Stats.get(lib);
+				result.put(lib, rewrite(lib, reached, stat));
+			}
+			return result;
+		} finally {
+			for (ZipFile zip : zips.values()) {
+				zip.close();
+			}
+		}
+	}
+
+	/* 从根出发找出依赖包中可达的类 */
+	private static Set<String> reach(List<String> roots, Map<String, File> owners, Map<File, ZipFile> zips)
+			throws IOException {
+		Set<String> reached = new HashSet<String>();
+		ArrayDeque<String> queue = new ArrayDeque<String>();
+		for (String c : roots) {
+			if (owners.containsKey(c) && reached.add(c)) {
+				queue.add(c);
+			}
+		}
+		Set<String> refs = new HashSet<String>();
+		while (!queue.isEmpty()) {
+			String c = queue.poll();
+			ZipFile zip = zips.get(owners.get(c));
+			ZipEntry e = zip.getEntry(c + ".class");
+			refs.clear();
+			try (InputStream in = new BufferedInputStream(zip.getInputStream(e))) {
+				ClassReferences.read(in, refs);
+			} catch (IOException ex) {
+				throw new IOException(zip.getName() + "中的" + c + "无法解析:" + ex.getMessage(), ex);
+			}
+			for (String r : refs) {
+				if (owners.containsKey(r) && reached.add(r)) {
+					queue.add(r);
+				}
+			}
+		}
+		return reached;
+	}
+
+	/* 重写依赖包，只保留可达的类 */
+	private File rewrite(File lib, Set<String> reached, Stat stat) throws IOException {
+		stat.before = lib.length();
+		try (JarDirectory dir = JarDirectory.open(lib)) {
+			List<JarDirectory.Item> keeps = new ArrayList<JarDirectory.Item>();
+			for (JarDirectory.Item item : dir.getItems()) {
+				String name = item.getName();
+				if (!isClass(name) || reached.contains(name.substring(0, name.length() - 6))) {
+					keeps.add(item);
+					if (isClass(name)) {
+						stat.kept++;
+					}
+				}
+			}
+			if (stat.kept == stat.classes) {
+				stat.after = stat.before;
+				return lib;
+			}
+			File dest = new File(m_OutputDirectory, lib.getName());
+			FileUtil.sureDir(dest);
+			boolean success = false;
+			try (JarWriter writer = new JarWriter(dest)) {
+				for (JarDirectory.Item item : keeps) {
+					long time = JarWriter.fromDosTime(item.getDosTime());
+					if (item.isDirectory()) {
+						writer.putDirectory(item.getName(), time);
+						continue;
+					}
+					writer.putEntry(item.getName(), time, item.getMethod(), item.getCrc(), item.getSize(),
+							item.getCompressedSize(), dir.getChannel(), dir.getDataOffset(item));
+				}
+				success = true;
+			} finally {
+				if (!success) {
+					dest.delete();
+				}
+			}
+			stat.after = dest.length();
+			return dest;
+		}
+	}
+
+	/**
+	 * 精简节省的字节数
+	 *
+	 * @return 字节数
+	 */
+	public long getSavedBytes() {
+		long bytes = 0;
+		for (Stat s : m_Stats.values()) {
+			bytes += s.before - s.after;
+		}
+		return bytes;
+	}
+
+	/**
+	 * 写精简报告
+	 *
+	 * @param file 报告文件
+	 * @throws IOException IO异常
+	 */
+	public void writeReport(File file) throws IOException {
+		FileUtil.sureDir(file);
+		long before = 0;
+		long after = 0;
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(file), JarWriter.UTF_8)) {
+			out.write("# 依赖包\t类数\t保留类数\t原大小\t精简后大小\n");
+			for (Entry<File, Stat> e : m_Stats.entrySet()) {
+				Stat s = e.getValue();
+				out.write(e.getKey().getName() + "\t" + s.classes + "\t" + s.kept + "\t" + s.before + "\t" + s.after
+						+ "\n");
+				before += s.before;
+				after += s.after;
+			}
+			out.write("# 合计\t\t\t" + before + "\t" + after + "\n");
+		}
+	}
+
+	private static boolean isClass(String name) {
+		return name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class");
+	}
+
+	/* META-INF/services中的实现类 */
+	private static void readServices(ZipFile zip, ZipEntry e, List<String> roots) throws IOException {
+		try (InputStream in = zip.getInputStream(e)) {
+			readLines(in, roots);
+		}
+	}
+
+	private static void readLines(InputStream in, List<String> roots) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, JarWriter.UTF_8));
+		String line;
+		while (null != (line = reader.readLine())) {
+			int idx = line.indexOf('#');
+			if (idx >= 0) {
+				line = line.substring(0, idx);
+			}
+			line = line.trim();
+			if (!line.isEmpty()) {
+				roots.add(line.replace('.', '/'));
+			}
+		}
+	}
+
+	/* spring.factories中的键与值都是类名 */
+	private static void readSpringFactories(ZipFile zip, ZipEntry e, List<String> roots) throws IOException {
+		Properties props = new Properties();
+		try (InputStream in = zip.getInputStream(e)) {
+			props.load(in);
+		}
+		for (String key : props.stringPropertyNames()) {
+			roots.add(key.replace('.', '/'));
+			for (String v : props.getProperty(key).split(",")) {
+				v = v.trim();
+				if (!v.isEmpty()) {
+					roots.add(v.replace('.', '/'));
+				}
+			}
+		}
+	}
+
+	/**
+	 * 依赖包的精简结果
+	 */
+	static class Stat {
+		/** 类数 */
+		int classes;
+		/** 保留的类数 */
+		int kept;
+		/** 原大小 */
+		long before;
+		/** 精简后的大小 */
+		long after;
+	}
+}
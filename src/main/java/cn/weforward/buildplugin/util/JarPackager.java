@@ -0,0 +1,928 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import cn.weforward.buildplugin.util.DigestCache.Digest;
+import cn.weforward.buildplugin.util.JarDirectory.Item;
+
+/**
+ * jar打包引擎
+ * <p>
+ * 条目的读取与压缩在有界的线程池中并行进行，再由当前线程按添加的顺序写入{@link JarWriter}，同时在途的条目数有上限；
+ * 目录在生成时才用{@link DirectoryWalker}逐层遍历，边遍历边写入，内存中只有（紧凑的）中央目录，占用不随文件数明显增长
+ * <p>
+ * 指定了上一次生成的jar包时为增量打包，大小与crc与上一次一致的条目直接复制其压缩后的数据，不再重新压缩（crc取自摘要缓存，没有记录时读取文件计算）。
+ * 压缩级别与打包格式的版本记在jar包的注释中，与上一次的不一致时全量打包，生成的数据只取决于输入与配置，不取决于构建的历史
+ * <p>
+ * 通过{@link #addArchive(File)}添加的其它jar包中的条目同样直接复制压缩后的数据，不解压也不产生临时文件
+ * <p>
+ * 设置了{@link DigestCache}时，不压缩的文件优先使用缓存中的crc，写入时只需读取一次文件
+ * <p>
+ * 设置了固定时间戳时为可重现打包，所有条目使用该时间（按UTC转换），相同的输入生成完全相同的jar包
+ *
+ * @author daibo
+ *
+ */
+public class JarPackager {
+	/** 清单文件名 */
+	public static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+	/** 超过此大小的文件不整个读入内存 */
+	private static final int LARGE_FILE = 8 * 1024 * 1024;
+	/** 每个线程在途的条目数 */
+	private static final int WINDOW_PER_THREAD = 4;
+	/** 线程编号 */
+	private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+	/** 打包格式的版本，压缩或写入方式改变使生成的数据不同时加1，上一次的jar包不再复用 */
+	private static final int FORMAT_VERSION = 1;
+	/** jar包注释的前缀 */
+	private static final String COMMENT_PREFIX = "weforward-jar/";
+
+	/** 目标文件 */
+	private final File m_Dest;
+	/** 待打包的条目 */
+	private final List<Source> m_Sources;
+	/** 清单属性 */
+	private Map<String, String> m_Manifest;
+	/** 压缩线程数 */
+	private int m_Threads;
+	/** 压缩级别 */
+	private int m_Level;
+	/** 按条目决定是否压缩的策略 */
+	private CompressionPolicy m_Policy;
+	/** 上一次生成的jar包 */
+	private File m_Previous;
+	/** 打包期间打开的上一次jar包的目录 */
+	private JarDirectory m_PreviousDirectory;
+	/** 复用的条目数 */
+	private int m_ReusedCount;
+	/** 固定的条目时间，小于0时使用文件的修改时间 */
+	private long m_Timestamp = -1;
+	/** 文件摘要缓存 */
+	private DigestCache m_DigestCache;
+	/** 打包期间打开的其它jar包 */
+	private final List<JarDirectory> m_Opened;
+	/** STORED条目数据的对齐字节数，0为不对齐 */
+	private int m_Alignment;
+	/** 要对齐的条目名前缀 */
+	private String m_AlignPrefix;
+	/** 共用的压缩线程池，为null时每次打包自建 */
+	private ExecutorService m_Executor;
+	/** 是否在写入时计算生成的文件的摘要 */
+	private boolean m_DestDigest;
+	/** 生成的文件的摘要 */
+	private Digest m_Digest;
+
+	public JarPackager(File dest) {
+		m_Dest = dest;
+		m_Sources = new ArrayList<Source>();
+		m_Opened = new ArrayList<JarDirectory>();
+		m_Threads = Runtime.getRuntime().availableProcessors();
+		m_Level = Deflater.DEFAULT_COMPRESSION;
+		m_Policy = new CompressionPolicy();
+	}
+
+	/**
+	 * 目标文件
+	 *
+	 * @return 文件
+	 */
+	public File getDestFile() {
+		return m_Dest;
+	}
+
+	/**
+	 * 设置压缩线程数
+	 *
+	 * @param threads 线程数，小于1时使用cpu核数
+	 */
+	public void setThreads(int threads) {
+		m_Threads = threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+	}
+
+	/**
+	 * 设置压缩级别
+	 *
+	 * @param level 0-9，-1为默认级别
+	 */
+	public void setLevel(int level) {
+		m_Level = level;
+	}
+
+	/**
+	 * 是否压缩，不压缩时所有条目以STORED方式写入
+	 *
+	 * @param compress 是否压缩
+	 */
+	public void setCompress(boolean compress) {
+		m_Policy.setEnabled(compress);
+	}
+
+	/**
+	 * 设置按条目决定是否压缩的策略
+	 *
+	 * @param policy 策略
+	 */
+	public void setPolicy(CompressionPolicy policy) {
+		m_Policy = policy;
+	}
+
+	/**
+	 * 按条目决定是否压缩的策略
+	 *
+	 * @return 策略
+	 */
+	public CompressionPolicy getPolicy() {
+		return m_Policy;
+	}
+
+	/**
+	 * 设置上一次生成的jar包，用于增量打包
+	 *
+	 * @param previous jar包，为null或不存在时全量打包
+	 */
+	public void setPrevious(File previous) {
+		m_Previous = previous;
+	}
+
+	/**
+	 * 增量打包时复用的条目数
+	 *
+	 * @return 条目数
+	 */
+	public int getReusedCount() {
+		return m_ReusedCount;
+	}
+
+	/**
+	 * 设置固定的条目时间，用于可重现打包
+	 *
+	 * @param timestamp 毫秒时间，小于0时使用文件的修改时间
+	 */
+	public void setTimestamp(long timestamp) {
+		m_Timestamp = timestamp;
+	}
+
+	/**
+	 * 设置文件摘要缓存，用于不压缩的文件
+	 *
+	 * @param cache 缓存
+	 */
+	public void setDigestCache(DigestCache cache) {
+		m_DigestCache = cache;
+	}
+
+	/**
+	 * 设置是否在写入时计算生成的文件的摘要，见{@link JarWriter#setDigest(boolean)}
+	 *
+	 * @param digest 是否计算
+	 */
+	public void setDestDigest(boolean digest) {
+		m_DestDigest = digest;
+	}
+
+	/**
+	 * 生成的文件的摘要，可放入{@link DigestCache}供上传时使用
+	 *
+	 * @return 未开启{@link #setDestDigest(boolean)}或未生成时返回null
+	 */
+	public Digest getDestDigest() {
+		return m_Digest;
+	}
+
+	/**
+	 * 设置STORED条目数据的对齐，见{@link JarWriter#setAlignment(int, String)}
+	 *
+	 * @param alignment 对齐字节数，0为不对齐
+	 * @param prefix    要对齐的条目名前缀，为null时对齐所有STORED条目
+	 */
+	public void setAlignment(int alignment, String prefix) {
+		m_Alignment = alignment;
+		m_AlignPrefix = prefix;
+	}
+
+	/**
+	 * 设置共用的压缩线程池，多个jar包同时生成时共用以免线程数翻倍，由调用方负责关闭
+	 *
+	 * @param executor 线程池，为null时自建（线程数由{@link #setThreads(int)}指定）
+	 */
+	public void setExecutor(ExecutorService executor) {
+		m_Executor = executor;
+	}
+
+	/**
+	 * 设置清单属性，按顺序写入
+	 *
+	 * @param manifest 属性
+	 */
+	public void setManifest(Map<String, String> manifest) {
+		m_Manifest = new LinkedHashMap<String, String>(manifest);
+	}
+
+	/**
+	 * 添加目录，生成时才逐层遍历，边遍历边写入
+	 *
+	 * @param dir      目录
+	 * @param prefix   条目名前缀
+	 * @param includes 包含文件
+	 * @param excludes 排除文件
+	 */
+	public void addDirectory(File dir, String prefix, String[] includes, String[] excludes) {
+		m_Sources.add(new Source(dir, normalizePrefix(prefix), FileSelector.compile(includes, excludes)));
+	}
+
+	/**
+	 * 添加文件
+	 *
+	 * @param file 文件
+	 * @param name 条目名
+	 */
+	public void addFile(File file, String name) {
+		m_Sources.add(new Source(file, normalizeName(name), false, true));
+	}
+
+	/**
+	 * 添加内容在内存中的条目
+	 *
+	 * @param name 条目名
+	 * @param data 内容
+	 */
+	public void addEntry(String name, byte[] data) {
+		m_Sources.add(new Source(normalizeName(name), data));
+	}
+
+	/**
+	 * 添加另一个jar包中的所有文件条目（META-INF下的除外），直接复制其压缩后的数据
+	 *
+	 * @param jar jar包
+	 */
+	public void addArchive(File jar) {
+		m_Sources.add(new Source(jar));
+	}
+
+	/**
+	 * 生成jar包
+	 *
+	 * @throws IOException IO异常
+	 */
+	public void createArchive() throws IOException {
+		ExecutorService pool = null == m_Executor ? newExecutor(m_Threads) : m_Executor;
+		ArrayDeque<Future<Compressed>> window = new ArrayDeque<Future<Compressed>>();
+		JarWriter writer = null;
+		boolean success = false;
+		m_ReusedCount = 0;
+		m_Digest = null;
+		m_PreviousDirectory = openPrevious();
+		try {
+			writer = new JarWriter(m_Dest);
+			writer.setAlignment(m_Alignment, m_AlignPrefix);
+			writer.setDigest(m_DestDigest);
+			writer.setComment(getComment());
+			if (m_Timestamp >= 0) {
+				writer.setTimeZone(TimeZone.getTimeZone("UTC"));
+			}
+			if (null != m_Manifest) {
+				byte[] bs = toManifestBytes(m_Manifest);
+				writer.putDirectory("META-INF/", getTime(System.currentTimeMillis()));
+				writeBytes(writer, MANIFEST_NAME, getTime(System.currentTimeMillis()), bs);
+			}
+			int max = m_Threads * WINDOW_PER_THREAD;
+			for (Source s : m_Sources) {
+				if (s.tree) {
+					walk(writer, window, max, pool, s);
+					continue;
+				}
+				if (null != s.archive) {
+					JarDirectory archive = JarDirectory.open(s.archive);
+					m_Opened.add(archive);
+					for (Item item : archive.getItems()) {
+						if (item.isDirectory() || item.getName().startsWith("META-INF/")) {
+							continue;
+						}
+						offer(writer, window, max, done(raw(archive, item)));
+					}
+					continue;
+				}
+				offer(writer, window, max, pool.submit(new CompressTask(s)));
+			}
+			while (!window.isEmpty()) {
+				write(writer, take(window.poll()));
+			}
+			writer.close();
+			m_Digest = writer.getDigest(m_Dest);
+			success = true;
+		} finally {
+			if (!success) {
+				discard(window);
+			}
+			if (pool != m_Executor) {
+				pool.shutdownNow();
+			}
+			if (!success) {
+				try {
+					FileUtil.close(writer);
+				} catch (IOException e) {
+					// 已经有异常了，忽略
+				}
+				m_Dest.delete();
+			}
+			if (null != m_PreviousDirectory) {
+				m_Opened.add(m_PreviousDirectory);
+				m_PreviousDirectory = null;
+			}
+			for (JarDirectory d : m_Opened) {
+				try {
+					d.close();
+				} catch (IOException e) {
+					// 只读，忽略
+				}
+			}
+			m_Opened.clear();
+		}
+	}
+
+	/**
+	 * 创建压缩线程池
+	 *
+	 * @param threads 线程数，小于1时使用cpu核数
+	 * @return 线程池
+	 */
+	public static ExecutorService newExecutor(int threads) {
+		if (threads < 1) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jar-packager-" + THREAD_NUMBER.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/* 边遍历目录边提交压缩，不先收集整个目录树 */
+	private void walk(JarWriter writer, ArrayDeque<Future<Compressed>> window, int max, ExecutorService pool,
+			Source tree) throws IOException {
+		DirectoryWalker walker = new DirectoryWalker(tree.file, tree.selector);
+		String path;
+		while (null != (path = walker.next())) {
+			Source s = new Source(new File(tree.file, path), tree.name + path, path.endsWith("/"), false);
+			offer(writer, window, max, pool.submit(new CompressTask(s)));
+		}
+	}
+
+	/* 加入在途队列，队列满时先写入最早的条目 */
+	private void offer(JarWriter writer, ArrayDeque<Future<Compressed>> window, int max, Future<Compressed> future)
+			throws IOException {
+		if (window.size() >= max) {
+			write(writer, take(window.poll()));
+		}
+		window.add(future);
+	}
+
+	/* 已完成的结果 */
+	private static Future<Compressed> done(final Compressed c) {
+		FutureTask<Compressed> task = new FutureTask<Compressed>(new Callable<Compressed>() {
+
+			@Override
+			public Compressed call() {
+				return c;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	/* 直接复制的条目 */
+	private static Compressed raw(JarDirectory archive, Item item) {
+		Compressed c = new Compressed();
+		c.name = item.getName();
+		c.time = JarWriter.fromDosTime(item.getDosTime());
+		c.rawFrom = archive;
+		c.raw = item;
+		c.method = item.getMethod();
+		c.crc = item.getCrc();
+		c.size = item.getSize();
+		c.csize = item.getCompressedSize();
+		return c;
+	}
+
+	/* 打开上一次的jar包，不可用或不是以相同的格式与压缩级别生成时全量打包 */
+	private JarDirectory openPrevious() {
+		if (null == m_Previous || !m_Previous.isFile()) {
+			return null;
+		}
+		JarDirectory dir;
+		try {
+			dir = JarDirectory.open(m_Previous);
+		} catch (IOException e) {
+			return null;
+		}
+		if (getComment().equals(dir.getComment())) {
+			return dir;
+		}
+		try {
+			dir.close();
+		} catch (IOException e) {
+			// 只读，忽略
+		}
+		return null;
+	}
+
+	/* jar包注释，记录影响压缩后数据的格式版本与压缩级别 */
+	private String getComment() {
+		return COMMENT_PREFIX + FORMAT_VERSION + " level=" + m_Level;
+	}
+
+	/* 等待压缩结果 */
+	private static Compressed take(Future<Compressed> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("打包被中断", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("压缩失败:" + cause.getMessage(), cause);
+		}
+	}
+
+	/* 丢弃未写入的压缩结果，清理临时文件 */
+	private static void discard(ArrayDeque<Future<Compressed>> window) {
+		for (Future<Compressed> f : window) {
+			if (f.cancel(false)) {
+				continue;
+			}
+			try {
+				Compressed c = f.get();
+				if (c.temp) {
+					c.file.delete();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException | CancellationException e) {
+				// 忽略
+			}
+		}
+	}
+
+	/* 条目的时间 */
+	private long getTime(long time) {
+		return m_Timestamp >= 0 ? m_Timestamp : time;
+	}
+
+	/* 写入压缩结果 */
+	private void write(JarWriter writer, Compressed c) throws IOException {
+		c.time = getTime(c.time);
+		if (c.directory) {
+			writer.putDirectory(c.name, c.time);
+			return;
+		}
+		if (null != c.raw) {
+			if (writer.putEntry(c.name, c.time, c.method, c.crc, c.size, c.csize, c.rawFrom.getChannel(),
+					c.rawFrom.getDataOffset(c.raw)) && c.rawFrom == m_PreviousDirectory) {
+				m_ReusedCount++;
+			}
+			return;
+		}
+		if (null != c.data) {
+			writer.putEntry(c.name, c.time, c.method, c.crc, c.size, c.data, 0, c.length);
+			return;
+		}
+		try {
+			writer.putEntry(c.name, c.time, c.method, c.crc, c.size, c.csize, c.file);
+		} finally {
+			if (c.temp) {
+				c.file.delete();
+			}
+		}
+	}
+
+	/* 写入字节内容 */
+	private void writeBytes(JarWriter writer, String name, long time, byte[] bs) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(bs, 0, bs.length);
+		if (m_Policy.isDeflate(name)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bs.length);
+			deflate(bs, bs.length, out, m_Level);
+			byte[] data = out.toByteArray();
+			if (data.length < bs.length) {
+				writer.putEntry(name, time, ZipEntry.DEFLATED, crc.getValue(), bs.length, data, 0, data.length);
+				return;
+			}
+		}
+		writer.putEntry(name, time, ZipEntry.STORED, crc.getValue(), bs.length, bs, 0, bs.length);
+	}
+
+	/**
+	 * 生成清单内容，每行不超过72字节
+	 *
+	 * @param attributes 属性
+	 * @return 清单内容
+	 */
+	public static byte[] toManifestBytes(Map<String, String> attributes) {
+		StringBuilder sb = new StringBuilder();
+		String version = attributes.get("Manifest-Version");
+		appendManifestLine(sb, "Manifest-Version", null == version ? "1.0" : version);
+		for (Entry<String, String> e : attributes.entrySet()) {
+			if ("Manifest-Version".equals(e.getKey()) || null == e.getValue()) {
+				continue;
+			}
+			appendManifestLine(sb, e.getKey(), e.getValue());
+		}
+		sb.append("\r\n");
+		return sb.toString().getBytes(JarWriter.UTF_8);
+	}
+
+	private static void appendManifestLine(StringBuilder sb, String name, String value) {
+		String line = name + ": " + value;
+		int bytes = 0;
+		for (int i = 0; i < line.length(); i++) {
+			char ch = line.charAt(i);
+			int l = String.valueOf(ch).getBytes(JarWriter.UTF_8).length;
+			if (bytes + l > 72) {
+				sb.append("\r\n ");
+				bytes = 1;
+			}
+			sb.append(ch);
+			bytes += l;
+		}
+		sb.append("\r\n");
+	}
+
+	/* 压缩数据 */
+	private static void deflate(byte[] data, int length, OutputStream out, int level) throws IOException {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			DeflaterOutputStream dout = new DeflaterOutputStream(out, deflater, 8 * 1024);
+			dout.write(data, 0, length);
+			dout.finish();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static String normalizePrefix(String prefix) {
+		if (null == prefix) {
+			return "";
+		}
+		prefix = normalizeName(prefix);
+		if (prefix.length() > 0 && !prefix.endsWith("/")) {
+			prefix = prefix + "/";
+		}
+		return prefix;
+	}
+
+	private static String normalizeName(String name) {
+		name = name.replace('\\', '/');
+		while (name.startsWith("/")) {
+			name = name.substring(1);
+		}
+		return name;
+	}
+
+	/**
+	 * 压缩任务
+	 */
+	private class CompressTask implements Callable<Compressed> {
+
+		private final Source m_Source;
+
+		CompressTask(Source source) {
+			m_Source = source;
+		}
+
+		@Override
+		public Compressed call() throws IOException {
+			Source s = m_Source;
+			Compressed c = new Compressed();
+			c.name = s.name;
+			c.directory = s.directory;
+			if (null != s.data) {
+				c.time = System.currentTimeMillis();
+				CRC32 crc = new CRC32();
+				crc.update(s.data, 0, s.data.length);
+				c.crc = crc.getValue();
+				c.size = s.data.length;
+				compress(c, s.data, s.data.length, m_Policy.isDeflate(s.name));
+				return c;
+			}
+			c.time = s.file.lastModified();
+			if (s.directory) {
+				return c;
+			}
+			long length = s.file.length();
+			boolean stored = !m_Policy.isDeflate(s.name);
+			Item old = getPrevious(s.name, length, stored);
+			// dos时间只精确到2秒，同一时段内重新编译出的同样大小的文件时间也相同，不能只凭时间复用，要比较crc。
+			// 摘要缓存按完整的修改时间记录了crc，有记录时不必读取文件
+			DigestCache cache = s.single ? m_DigestCache : null;
+			if (null != old && null != cache) {
+				Digest d = cache.get(s.file);
+				if (null != d && d.getCrc() == old.getCrc()) {
+					reuse(c, old);
+					return c;
+				}
+			}
+			if (stored && null != cache) {
+				Digest d = cache.get(s.file);
+				if (null == d && length > LARGE_FILE) {
+					d = cache.digest(s.file);
+				}
+				if (null != d) {
+					c.method = ZipEntry.STORED;
+					c.crc = d.getCrc();
+					c.size = d.getSize();
+					c.file = s.file;
+					c.csize = d.getSize();
+					return c;
+				}
+			}
+			if (length > LARGE_FILE) {
+				compressLarge(s.file, c, old, !stored);
+				return c;
+			}
+			byte[] bs = new byte[(int) length];
+			int l = 0;
+			try (InputStream in = new FileInputStream(s.file)) {
+				int n;
+				while (l < bs.length && (n = in.read(bs, l, bs.length - l)) > 0) {
+					l += n;
+				}
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bs, 0, l);
+			if (null != old && old.getSize() == l && old.getCrc() == crc.getValue()) {
+				reuse(c, old);
+				return c;
+			}
+			c.crc = crc.getValue();
+			c.size = l;
+			if (stored && null != cache) {
+				cache.digest(s.file, c.time, bs, l);
+			}
+			compress(c, bs, l, !stored);
+			return c;
+		}
+
+		/* 压缩内存中的数据，压缩后不更小时直接存储 */
+		private void compress(Compressed c, byte[] bs, int l, boolean deflate) throws IOException {
+			if (deflate && l > 0) {
+				Buffer out = new Buffer(Math.max(64, l / 2));
+				deflate(bs, l, out, m_Level);
+				if (out.size() < l) {
+					c.method = ZipEntry.DEFLATED;
+					c.data = out.array();
+					c.length = out.size();
+					return;
+				}
+			}
+			c.method = ZipEntry.STORED;
+			c.data = bs;
+			c.length = l;
+		}
+
+		/* 上一次jar包中可复用的同名条目，需大小一致且压缩方式符合当前策略 */
+		private Item getPrevious(String name, long length, boolean stored) {
+			if (null == m_PreviousDirectory) {
+				return null;
+			}
+			Item old = m_PreviousDirectory.get(name);
+			if (null == old || old.getSize() != length) {
+				return null;
+			}
+			if (old.getMethod() == (stored ? ZipEntry.STORED : ZipEntry.DEFLATED)) {
+				return old;
+			}
+			return null;
+		}
+
+		/* 复用上一次的条目 */
+		private void reuse(Compressed c, Item old) {
+			c.rawFrom = m_PreviousDirectory;
+			c.raw = old;
+			c.method = old.getMethod();
+			c.crc = old.getCrc();
+			c.size = old.getSize();
+			c.csize = old.getCompressedSize();
+		}
+
+		/* 大文件，压缩到临时文件或直接存储 */
+		private void compressLarge(File file, Compressed c, Item old, boolean deflate) throws IOException {
+			CRC32 crc = new CRC32();
+			byte[] buffer = new byte[64 * 1024];
+			long size = 0;
+			File temp = null;
+			if (null != old) {
+				try (InputStream in = new FileInputStream(file)) {
+					int l;
+					while ((l = in.read(buffer)) > 0) {
+						crc.update(buffer, 0, l);
+					}
+				}
+				if (old.getCrc() == crc.getValue()) {
+					reuse(c, old);
+					return;
+				}
+				crc.reset();
+			}
+			if (deflate) {
+				temp = File.createTempFile("jarpackager", ".deflate");
+				temp.deleteOnExit();
+				Deflater deflater = new Deflater(m_Level, true);
+				try (InputStream in = new FileInputStream(file);
+						DeflaterOutputStream out = new DeflaterOutputStream(new FileOutputStream(temp), deflater,
+								buffer.length)) {
+					int l;
+					while ((l = in.read(buffer)) > 0) {
+						crc.update(buffer, 0, l);
+						out.write(buffer, 0, l);
+						size += l;
+					}
+					out.finish();
+				} catch (IOException e) {
+					temp.delete();
+					throw e;
+				} finally {
+					deflater.end();
+				}
+			} else {
+				try (InputStream in = new FileInputStream(file)) {
+					int l;
+					while ((l = in.read(buffer)) > 0) {
+						crc.update(buffer, 0, l);
+						size += l;
+					}
+				}
+			}
+			c.crc = crc.getValue();
+			c.size = size;
+			if (null != temp && temp.length() < size) {
+				c.method = ZipEntry.DEFLATED;
+				c.file = temp;
+				c.csize = temp.length();
+				c.temp = true;
+			} else {
+				if (null != temp) {
+					temp.delete();
+				}
+				c.method = ZipEntry.STORED;
+				c.file = file;
+				c.csize = size;
+			}
+		}
+	}
+
+	/**
+	 * 待打包的条目
+	 */
+	static class Source {
+		/** 文件 */
+		final File file;
+		/** 条目名 */
+		final String name;
+		/** 是否目录 */
+		final boolean directory;
+		/** 是否单独添加的文件（如依赖包），这类文件的摘要才放入缓存 */
+		final boolean single;
+		/** 要复制其条目的jar包 */
+		final File archive;
+		/** 内存中的内容 */
+		final byte[] data;
+		/** 是否要遍历的目录树，此时name为条目名前缀 */
+		final boolean tree;
+		/** 遍历目录树时的包含与排除规则 */
+		final FileSelector selector;
+
+		Source(File file, String name, boolean directory, boolean single) {
+			this.file = file;
+			this.name = name;
+			this.directory = directory;
+			this.single = single;
+			this.archive = null;
+			this.data = null;
+			this.tree = false;
+			this.selector = null;
+		}
+
+		Source(File dir, String prefix, FileSelector selector) {
+			this.file = dir;
+			this.name = prefix;
+			this.directory = true;
+			this.single = false;
+			this.archive = null;
+			this.data = null;
+			this.tree = true;
+			this.selector = selector;
+		}
+
+		Source(File archive) {
+			this.file = null;
+			this.name = null;
+			this.directory = false;
+			this.single = false;
+			this.archive = archive;
+			this.data = null;
+			this.tree = false;
+			this.selector = null;
+		}
+
+		Source(String name, byte[] data) {
+			this.file = null;
+			this.name = name;
+			this.directory = false;
+			this.single = false;
+			this.archive = null;
+			this.data = data;
+			this.tree = false;
+			this.selector = null;
+		}
+	}
+
+	/**
+	 * 压缩结果
+	 */
+	static class Compressed {
+		/** 条目名 */
+		String name;
+		/** 修改时间 */
+		long time;
+		/** 是否目录 */
+		boolean directory;
+		/** 压缩方式 */
+		int method;
+		/** crc32 */
+		long crc;
+		/** 未压缩大小 */
+		long size;
+		/** 在内存中的数据 */
+		byte[] data;
+		/** 在内存中的数据长度 */
+		int length;
+		/** 在文件中的数据 */
+		File file;
+		/** 文件中的数据长度 */
+		long csize;
+		/** 是否临时文件 */
+		boolean temp;
+		/** 直接复制数据的jar包 */
+		JarDirectory rawFrom;
+		/** 直接复制数据的条目 */
+		Item raw;
+	}
+
+	/**
+	 * 可直接取出数组的字节输出流
+	 */
+	static class Buffer extends ByteArrayOutputStream {
+
+		Buffer(int size) {
+			super(size);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+}
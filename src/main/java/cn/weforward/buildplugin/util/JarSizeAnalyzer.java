@@ -0,0 +1,519 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * jar包大小分析
+ * <p>
+ * 按依赖包、包名与文件类型统计条目数、未压缩与压缩后的大小，嵌套的依赖包（BOOT-INF/lib/*.jar）展开统计其中的条目。
+ * 同时找出多个依赖包（或应用类与依赖包）中同名的资源，并可与上一次的jar包（.original）对比各依赖包的大小变化
+ *
+ * @author daibo
+ *
+ */
+public class JarSizeAnalyzer {
+	/** 不在依赖包中的条目（应用类、清单、加载器等）的统计名 */
+	public static final String APPLICATION = "(application)";
+	/** 不在包中的条目的包名 */
+	private static final String ROOT_PACKAGE = "(root)";
+	/** 没有扩展名的条目的类型 */
+	private static final String NO_TYPE = "(none)";
+	/** 应用类目录 */
+	private static final String BOOT_INF_CLASSES = "BOOT-INF/classes/";
+
+	/** 分析的jar包 */
+	private final File m_File;
+	/** 条目数 */
+	private long m_Entries;
+	/** 未压缩的总大小 */
+	private long m_Size;
+	/** 按依赖包 */
+	private final Map<String, Stat> m_Dependencies;
+	/** 按包名 */
+	private final Map<String, Stat> m_Packages;
+	/** 按类型 */
+	private final Map<String, Stat> m_Types;
+	/** 条目名对应的第一个来源，出现多次时为重复 */
+	private final Map<String, Resource> m_Resources;
+	/** 上一次的jar包的分析结果 */
+	private JarSizeAnalyzer m_Previous;
+
+	/**
+	 * 构造
+	 *
+	 * @param file jar包
+	 */
+	public JarSizeAnalyzer(File file) {
+		m_File = file;
+		m_Dependencies = new HashMap<String, Stat>();
+		m_Packages = new HashMap<String, Stat>();
+		m_Types = new HashMap<String, Stat>();
+		m_Resources = new HashMap<String, Resource>();
+	}
+
+	/**
+	 * 分析jar包
+	 *
+	 * @throws IOException IO异常
+	 */
+	public void analyze() throws IOException {
+		try (JarDirectory jar = JarDirectory.open(m_File)) {
+			for (JarDirectory.Item item : jar.getItems()) {
+				String name = item.getName();
+				if (name.startsWith(JarUtil.BOOT_INF_LIB) && name.endsWith(".jar")
+						&& name.indexOf('/', JarUtil.BOOT_INF_LIB.length()) < 0) {
+					analyzeNested(jar, item);
+					continue;
+				}
+				m_Entries++;
+				m_Size += item.getSize();
+				getStat(m_Dependencies, APPLICATION).add(item.getSize(), item.getCompressedSize());
+				if (!item.isDirectory()) {
+					String path = name.startsWith(BOOT_INF_CLASSES) ? name.substring(BOOT_INF_CLASSES.length())
+							: name;
+					addEntry(APPLICATION, path, item);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 与上一次的jar包对比
+	 *
+	 * @param original 上一次的jar包，不存在时不对比
+	 * @throws IOException IO异常
+	 */
+	public void setPrevious(File original) throws IOException {
+		if (null == original || !original.isFile()) {
+			m_Previous = null;
+			return;
+		}
+		m_Previous = new JarSizeAnalyzer(original);
+		m_Previous.analyze();
+	}
+
+	/**
+	 * jar包文件大小
+	 *
+	 * @return 字节数
+	 */
+	public long getFileSize() {
+		return m_File.length();
+	}
+
+	/**
+	 * 重复资源多占的大小（压缩后）
+	 *
+	 * @return 字节数
+	 */
+	public long getDuplicateWaste() {
+		long waste = 0;
+		for (Resource r : getDuplicates()) {
+			waste += r.getWaste();
+		}
+		return waste;
+	}
+
+	/**
+	 * 写json格式的报告
+	 *
+	 * @param file 文件
+	 * @throws IOException IO异常
+	 */
+	public void writeJson(File file) throws IOException {
+		FileUtil.sureDir(file);
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(file), JarWriter.UTF_8)) {
+			out.write("{\n  \"file\": ");
+			out.write(quote(m_File.getName()));
+			out.write(",\n  \"size\": " + getFileSize());
+			out.write(",\n  \"entries\": " + m_Entries);
+			out.write(",\n  \"uncompressed\": " + m_Size);
+			out.write(",\n  \"dependencies\": ");
+			writeStats(out, m_Dependencies.values());
+			out.write(",\n  \"packages\": ");
+			writeStats(out, m_Packages.values());
+			out.write(",\n  \"types\": ");
+			writeStats(out, m_Types.values());
+			out.write(",\n  \"duplicates\": [");
+			String sep = "\n";
+			for (Resource r : getDuplicates()) {
+				out.write(sep + "    {\"name\": " + quote(r.name) + ", \"uncompressed\": " + r.size
+						+ ", \"compressed\": " + r.csize + ", \"waste\": " + r.getWaste() + ", \"identical\": "
+						+ !r.differ + ", \"owners\": [");
+				String s = "";
+				for (String owner : r.owners) {
+					out.write(s + quote(owner));
+					s = ", ";
+				}
+				out.write("]}");
+				sep = ",\n";
+			}
+			out.write("\n  ]");
+			if (null != m_Previous) {
+				out.write(",\n  \"previous\": {\n    \"file\": " + quote(m_Previous.m_File.getName()));
+				out.write(",\n    \"size\": " + m_Previous.getFileSize());
+				out.write(",\n    \"delta\": " + (getFileSize() - m_Previous.getFileSize()));
+				out.write(",\n    \"dependencies\": [");
+				sep = "\n";
+				for (Change c : getChanges()) {
+					out.write(sep + "      {\"name\": " + quote(c.name) + ", \"before\": " + c.before + ", \"after\": "
+							+ c.after + ", \"delta\": " + c.getDelta() + "}");
+					sep = ",\n";
+				}
+				out.write("\n    ]\n  }");
+			}
+			out.write("\n}\n");
+		}
+	}
+
+	/**
+	 * 可读的摘要
+	 *
+	 * @param top 每项列出的前几个
+	 * @return 各行
+	 */
+	public List<String> getSummary(int top) {
+		List<String> lines = new ArrayList<String>();
+		lines.add(m_File.getName() + " " + formatSize(getFileSize()) + "，" + m_Entries + "个条目，未压缩"
+				+ formatSize(m_Size));
+		lines.add("按依赖包（压缩后/未压缩/条目数）:");
+		addTop(lines, m_Dependencies.values(), top);
+		lines.add("按包名:");
+		addTop(lines, m_Packages.values(), top);
+		lines.add("按类型:");
+		addTop(lines, m_Types.values(), top);
+		List<Resource> duplicates = getDuplicates();
+		if (!duplicates.isEmpty()) {
+			lines.add("重复资源" + duplicates.size() + "个，多占" + formatSize(getDuplicateWaste()) + ":");
+			for (int i = 0; i < duplicates.size() && i < top; i++) {
+				Resource r = duplicates.get(i);
+				lines.add("  " + r.name + " " + formatSize(r.getWaste()) + (r.differ ? " 内容不同 " : " ")
+						+ r.owners);
+			}
+		}
+		if (null != m_Previous) {
+			long delta = getFileSize() - m_Previous.getFileSize();
+			lines.add("与" + m_Previous.m_File.getName() + "相比" + formatDelta(delta) + ":");
+			List<Change> changes = getChanges();
+			for (int i = 0; i < changes.size() && i < top; i++) {
+				Change c = changes.get(i);
+				String state = c.before < 0 ? "新增" : (c.after < 0 ? "移除" : "变化");
+				lines.add("  " + state + " " + c.name + " " + formatDelta(c.getDelta()));
+			}
+		}
+		return lines;
+	}
+
+	/* 展开嵌套的依赖包 */
+	private void analyzeNested(JarDirectory jar, JarDirectory.Item item) throws IOException {
+		String lib = item.getName().substring(JarUtil.BOOT_INF_LIB.length());
+		Stat stat = getStat(m_Dependencies, lib);
+		// 依赖包在jar包中占的大小计为其压缩后大小，未压缩大小为其中各条目之和
+		stat.csize += item.getCompressedSize();
+		File temp = File.createTempFile("size", ".jar");
+		try {
+			try (InputStream in = openData(jar, item); OutputStream out = new FileOutputStream(temp)) {
+				byte[] buffer = new byte[64 * 1024];
+				int l;
+				while ((l = in.read(buffer)) > 0) {
+					out.write(buffer, 0, l);
+				}
+			}
+			try (JarDirectory nested = JarDirectory.open(temp)) {
+				for (JarDirectory.Item e : nested.getItems()) {
+					m_Entries++;
+					m_Size += e.getSize();
+					stat.count++;
+					stat.size += e.getSize();
+					if (!e.isDirectory()) {
+						addEntry(lib, e.getName(), e);
+					}
+				}
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/* 条目解压后的数据 */
+	private static InputStream openData(JarDirectory jar, JarDirectory.Item item) throws IOException {
+		InputStream in = jar.openRaw(item);
+		if (item.getMethod() == ZipEntry.STORED) {
+			return in;
+		}
+		final Inflater inflater = new Inflater(true);
+		return new InflaterInputStream(in, inflater) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				inflater.end();
+			}
+		};
+	}
+
+	/* 统计一个文件条目 */
+	private void addEntry(String owner, String path, JarDirectory.Item item) {
+		int idx = path.lastIndexOf('/');
+		String pkg = idx < 0 ? ROOT_PACKAGE : path.substring(0, idx).replace('/', '.');
+		getStat(m_Packages, pkg).add(item.getSize(), item.getCompressedSize());
+		String name = path.substring(idx + 1);
+		int dot = name.lastIndexOf('.');
+		String type = dot <= 0 ? NO_TYPE : name.substring(dot + 1).toLowerCase();
+		getStat(m_Types, type).add(item.getSize(), item.getCompressedSize());
+		if (isIgnoredDuplicate(path)) {
+			return;
+		}
+		Resource r = m_Resources.get(path);
+		if (null == r) {
+			m_Resources.put(path, new Resource(path, owner, item));
+		} else {
+			r.add(owner, item);
+		}
+	}
+
+	/* 每个jar包都有的条目，重复是正常的 */
+	private static boolean isIgnoredDuplicate(String path) {
+		return "META-INF/MANIFEST.MF".equals(path) || "META-INF/INDEX.LIST".equals(path)
+				|| path.endsWith("module-info.class") || path.startsWith("META-INF/maven/");
+	}
+
+	/* 重复的资源，按多占的大小排序 */
+	private List<Resource> getDuplicates() {
+		List<Resource> list = new ArrayList<Resource>();
+		for (Resource r : m_Resources.values()) {
+			if (r.owners.size() > 1) {
+				list.add(r);
+			}
+		}
+		Collections.sort(list, new Comparator<Resource>() {
+
+			@Override
+			public int compare(Resource r1, Resource r2) {
+				int c = compareLong(r2.getWaste(), r1.getWaste());
+				return c != 0 ? c : r1.name.compareTo(r2.name);
+			}
+		});
+		return list;
+	}
+
+	/* 与上一次相比有变化的依赖包，按变化量排序 */
+	private List<Change> getChanges() {
+		TreeSet<String> names = new TreeSet<String>(m_Dependencies.keySet());
+		names.addAll(m_Previous.m_Dependencies.keySet());
+		List<Change> changes = new ArrayList<Change>();
+		for (String name : names) {
+			Stat now = m_Dependencies.get(name);
+			Stat old = m_Previous.m_Dependencies.get(name);
+			Change c = new Change(name, null == old ? -1 : old.csize, null == now ? -1 : now.csize);
+			if (c.before != c.after) {
+				changes.add(c);
+			}
+		}
+		Collections.sort(changes, new Comparator<Change>() {
+
+			@Override
+			public int compare(Change c1, Change c2) {
+				return compareLong(Math.abs(c2.getDelta()), Math.abs(c1.getDelta()));
+			}
+		});
+		return changes;
+	}
+
+	private static Stat getStat(Map<String, Stat> stats, String name) {
+		Stat s = stats.get(name);
+		if (null == s) {
+			s = new Stat(name);
+			stats.put(name, s);
+		}
+		return s;
+	}
+
+	/* 按压缩后大小排序 */
+	private static List<Stat> sort(Collection<Stat> stats) {
+		List<Stat> list = new ArrayList<Stat>(stats);
+		Collections.sort(list, new Comparator<Stat>() {
+
+			@Override
+			public int compare(Stat s1, Stat s2) {
+				int c = compareLong(s2.csize, s1.csize);
+				return c != 0 ? c : s1.name.compareTo(s2.name);
+			}
+		});
+		return list;
+	}
+
+	private static void addTop(List<String> lines, Collection<Stat> stats, int top) {
+		List<Stat> list = sort(stats);
+		for (int i = 0; i < list.size() && i < top; i++) {
+			Stat s = list.get(i);
+			lines.add("  " + s.name + " " + formatSize(s.csize) + "/" + formatSize(s.size) + "/" + s.count);
+		}
+		if (list.size() > top) {
+			lines.add("  ...共" + list.size() + "项");
+		}
+	}
+
+	private static void writeStats(Writer out, Collection<Stat> stats) throws IOException {
+		out.write("[");
+		String sep = "\n";
+		for (Stat s : sort(stats)) {
+			out.write(sep + "    {\"name\": " + quote(s.name) + ", \"entries\": " + s.count + ", \"uncompressed\": "
+					+ s.size + ", \"compressed\": " + s.csize + "}");
+			sep = ",\n";
+		}
+		out.write("\n  ]");
+	}
+
+	private static int compareLong(long l1, long l2) {
+		return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+	}
+
+	/* json字符串 */
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * 可读的大小
+	 *
+	 * @param size 字节数
+	 * @return 如12.3MB
+	 */
+	public static String formatSize(long size) {
+		if (size < 1024) {
+			return size + "B";
+		}
+		if (size < 1024 * 1024) {
+			return String.format("%.1fKB", size / 1024.0);
+		}
+		return String.format("%.1fMB", size / (1024.0 * 1024));
+	}
+
+	private static String formatDelta(long delta) {
+		return (delta >= 0 ? "+" : "-") + formatSize(Math.abs(delta));
+	}
+
+	/**
+	 * 一项统计
+	 */
+	static class Stat {
+		/** 名称 */
+		final String name;
+		/** 条目数 */
+		long count;
+		/** 未压缩大小 */
+		long size;
+		/** 压缩后大小 */
+		long csize;
+
+		Stat(String name) {
+			this.name = name;
+		}
+
+		void add(long size, long csize) {
+			this.count++;
+			this.size += size;
+			this.csize += csize;
+		}
+	}
+
+	/**
+	 * 资源及其来源
+	 */
+	static class Resource {
+		/** 条目名 */
+		final String name;
+		/** 未压缩大小 */
+		final long size;
+		/** 压缩后大小 */
+		final long csize;
+		/** crc32 */
+		final long crc;
+		/** 来源（依赖包名） */
+		final List<String> owners;
+		/** 各来源的内容是否不同 */
+		boolean differ;
+
+		Resource(String name, String owner, JarDirectory.Item item) {
+			this.name = name;
+			this.size = item.getSize();
+			this.csize = item.getCompressedSize();
+			this.crc = item.getCrc();
+			this.owners = new ArrayList<String>(1);
+			this.owners.add(owner);
+		}
+
+		void add(String owner, JarDirectory.Item item) {
+			owners.add(owner);
+			if (item.getCrc() != crc || item.getSize() != size) {
+				differ = true;
+			}
+		}
+
+		/* 除第一个外多占的大小 */
+		long getWaste() {
+			return csize * (owners.size() - 1);
+		}
+	}
+
+	/**
+	 * 依赖包的大小变化
+	 */
+	static class Change {
+		/** 依赖包名 */
+		final String name;
+		/** 之前的大小，不存在时为-1 */
+		final long before;
+		/** 现在的大小，不存在时为-1 */
+		final long after;
+
+		Change(String name, long before, long after) {
+			this.name = name;
+			this.before = before;
+			this.after = after;
+		}
+
+		long getDelta() {
+			return Math.max(after, 0) - Math.max(before, 0);
+		}
+	}
+}
@@ -10,22 +10,32 @@
  */
 package cn.weforward.buildplugin.util;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
-import org.codehaus.plexus.archiver.ArchiverException;
-import org.codehaus.plexus.archiver.jar.JarArchiver;
-import org.codehaus.plexus.archiver.jar.Manifest.Attribute;
-import org.codehaus.plexus.archiver.jar.ManifestException;
 import org.springframework.boot.loader.JarLauncher;
 import org.springframework.boot.loader.Launcher;
 
@@ -36,6 +46,22 @@ import org.springframework.boot.loader.Launcher;
  * 
  */
 public class JarUtil {
+	/** 分层：稳定的依赖 */
+	public static final String LAYER_DEPENDENCIES = "dependencies";
+	/** 分层：spring boot加载器 */
+	public static final String LAYER_SPRING_BOOT_LOADER = "spring-boot-loader";
+	/** 分层：内部模块的依赖 */
+	public static final String LAYER_INTERNAL_DEPENDENCIES = "internal-dependencies";
+	/** 分层：快照依赖 */
+	public static final String LAYER_SNAPSHOT_DEPENDENCIES = "snapshot-dependencies";
+	/** 分层：应用 */
+	public static final String LAYER_APPLICATION = "application";
+	/** 分层索引 */
+	public static final String LAYERS_INDEX = "BOOT-INF/layers.idx";
+	/** 类文件目录 */
+	private static final String BOOT_INF_CLASSES = "BOOT-INF/classes/";
+	/** 依赖包目录 */
+	public static final String BOOT_INF_LIB = "BOOT-INF/lib/";
 
 	private JarUtil() {
 
@@ -44,84 +70,340 @@ public class JarUtil {
 	/**
 	 * 打包jar
 	 * 
-	 * @param archiver 归档工具
+	 * @param packager 打包引擎
 	 * @param classdir 类文件目录
 	 * @param mainfest 清单
 	 * @param includes 包含文件
 	 * @param excludes 排除文件
-	 * @throws ArchiverException 异常
-	 * @throws ManifestException 异常
-	 * @throws IOException       异常
+	 * @throws IOException 异常
 	 */
-	public static void packageJar(JarArchiver archiver, File classdir, Map<String, String> mainfest, String[] includes,
-			String[] excludes) throws ArchiverException, ManifestException, IOException {
+	public static void packageJar(JarPackager packager, File classdir, Map<String, String> mainfest,
+			String[] includes, String[] excludes) throws IOException {
 		if (classdir.isDirectory()) {
-			archiver.addDirectory(classdir, includes, excludes);
+			packager.addDirectory(classdir, null, includes, excludes);
 		}
+		Map<String, String> newManifest = getDefaultManifest();
 		if (null != mainfest) {
-			org.codehaus.plexus.archiver.jar.Manifest newManifest = org.codehaus.plexus.archiver.jar.Manifest
-					.getDefaultManifest();
-			for (Entry<String, String> e : mainfest.entrySet()) {
-				newManifest.addConfiguredAttribute(
-						new org.codehaus.plexus.archiver.jar.Manifest.Attribute(e.getKey(), e.getValue()));
-			}
-			archiver.addConfiguredManifest(newManifest);
+			newManifest.putAll(mainfest);
 		}
+		packager.setManifest(newManifest);
 	}
 
 	/**
 	 * 打包jar
 	 * 
-	 * @param archiver 归档工具
+	 * @param packager 打包引擎
 	 * @param classdir 类文件目录
 	 * @param mainfest 清单
 	 * @param libs     依赖包
 	 * @param includes 包含文件
 	 * @param excludes 排除文件
-	 * @throws ArchiverException 异常
-	 * @throws ManifestException 异常
-	 * @throws IOException       异常
-	 * @return jar打包类
+	 * @throws IOException 异常
+	 * @return 打包引擎
 	 */
-	public static JarArchiver packageSpringBootJar(JarArchiver archiver, File classdir, Map<String, String> mainfest,
-			List<File> libs, String[] includes, String[] excludes)
-			throws ArchiverException, ManifestException, IOException {
-		File boottmp = new File(System.getProperty("java.io.tmpdir"), "springbootloader");
-		if (!boottmp.exists()) {
-			boottmp.mkdir();
-		}
-		initSpringBootLoader(boottmp, archiver);
-		String classes = "BOOT-INF/classes/";
-		String lib = "BOOT-INF/lib/";
-		archiver.addDirectory(classdir, classes, includes, concat(excludes, "**/META-INF/**"));
-		for (File f : classdir.listFiles()) {
-			if (StringUtil.eq(f.getName(), "META-INF")) {
-				archiver.addDirectory(f, "/META-INF/", null, concat(null, "**/MANIFEST.MF/**"));
-				break;
+	public static JarPackager packageSpringBootJar(JarPackager packager, File classdir, Map<String, String> mainfest,
+			List<File> libs, String[] includes, String[] excludes) throws IOException {
+		initSpringBootLoader(packager);
+		addApplication(packager, classdir, includes, excludes);
+		if (null != libs) {
+			String prefix = BOOT_INF_LIB;
+			for (File f : libs) {
+				String name = prefix + f.getName();
+				packager.addFile(f, name);
 			}
 		}
+		packager.setManifest(getSpringBootManifest(mainfest));
+		// 嵌套的jar包必须直接存储，其它条目按策略压缩
+		packager.getPolicy().addRequired(BOOT_INF_LIB + "**");
+		return packager;
+	}
+
+	/**
+	 * 打包依赖外置的jar
+	 * <p>
+	 * 依赖包以“原文件名-内容摘要.jar”复制到libdir，清单的Class-Path指向它们，内容不变的依赖包文件名不变，发布时只需上传新的依赖包。
+	 * libdir中不再使用的依赖包会被删除
+	 * 
+	 * @param packager 打包引擎
+	 * @param classdir 类文件目录
+	 * @param mainfest 清单
+	 * @param libs     依赖包
+	 * @param libdir   依赖包目录，与jar包同级
+	 * @param cache    文件摘要缓存
+	 * @param includes 包含文件
+	 * @param excludes 排除文件
+	 * @throws IOException 异常
+	 * @return 打包引擎
+	 */
+	public static JarPackager packageThinJar(JarPackager packager, File classdir, Map<String, String> mainfest,
+			List<File> libs, File libdir, DigestCache cache, String[] includes, String[] excludes)
+			throws IOException {
+		Set<String> names = new LinkedHashSet<String>();
 		if (null != libs) {
-			String prefix = lib;
+			if (!libdir.isDirectory() && !libdir.mkdirs()) {
+				throw new IOException("无法创建目录" + libdir);
+			}
 			for (File f : libs) {
-				String name = prefix + f.getName();
-				archiver.addFile(f, name);
+				String name = getThinLibName(f, cache.digest(f));
+				File dest = new File(libdir, name);
+				if (!dest.isFile() || dest.length() != f.length()) {
+					File temp = new File(libdir, name + ".tmp");
+					Files.copy(f.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				names.add(name);
+			}
+		}
+		File[] olds = libdir.listFiles();
+		if (null != olds) {
+			for (File f : olds) {
+				if (f.isFile() && !names.contains(f.getName())) {
+					f.delete();
+				}
+			}
+		}
+		packageJar(packager, classdir, mainfest, includes, excludes);
+		if (!names.isEmpty()) {
+			Map<String, String> newManifest = getDefaultManifest();
+			if (null != mainfest) {
+				newManifest.putAll(mainfest);
+			}
+			StringBuilder classpath = new StringBuilder();
+			for (String name : names) {
+				if (classpath.length() > 0) {
+					classpath.append(' ');
+				}
+				classpath.append(libdir.getName()).append('/').append(name);
+			}
+			newManifest.put("Class-Path", classpath.toString());
+			packager.setManifest(newManifest);
+		}
+		return packager;
+	}
+
+	/* 依赖外置时的依赖包名，原文件名加内容摘要 */
+	private static String getThinLibName(File lib, DigestCache.Digest digest) {
+		String name = lib.getName();
+		if (name.endsWith(".jar")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		return name + "-" + digest.getSha256().substring(0, 16) + ".jar";
+	}
+
+	/**
+	 * 打包分层的jar
+	 * <p>
+	 * 按加载器、各依赖层、应用的顺序写入，每层内的依赖按文件名排序，并生成{@link #LAYERS_INDEX}分层索引
+	 * <p>
+	 * 分层索引沿用spring boot 2.3的格式，但打入的加载器是1.5版本的，运行时不读取它，也没有layertools。
+	 * 索引由构建时的{@link #extractLayers(File, File)}（layers目标）使用：按层解开到各自的目录，镜像按顺序逐层复制，
+	 * 在解开的目录中以org.springframework.boot.loader.JarLauncher启动（1.5的加载器支持解开的目录）
+	 * 
+	 * @param packager 打包引擎
+	 * @param classdir 类文件目录
+	 * @param mainfest 清单
+	 * @param layers   按顺序的层名与其依赖包
+	 * @param includes 包含文件
+	 * @param excludes 排除文件
+	 * @throws IOException 异常
+	 * @return 打包引擎
+	 */
+	public static JarPackager packageLayeredSpringBootJar(JarPackager packager, File classdir,
+			Map<String, String> mainfest, Map<String, List<File>> layers, String[] includes, String[] excludes)
+			throws IOException {
+		StringBuilder index = new StringBuilder();
+		initSpringBootLoader(packager);
+		appendLayer(index, LAYER_SPRING_BOOT_LOADER, Collections.singletonList("org/"));
+		for (Entry<String, List<File>> e : layers.entrySet()) {
+			List<File> libs = new ArrayList<File>(e.getValue());
+			Collections.sort(libs, new Comparator<File>() {
+
+				@Override
+				public int compare(File f1, File f2) {
+					return f1.getName().compareTo(f2.getName());
+				}
+			});
+			List<String> names = new ArrayList<String>(libs.size());
+			for (File f : libs) {
+				String name = BOOT_INF_LIB + f.getName();
+				packager.addFile(f, name);
+				names.add(name);
+			}
+			appendLayer(index, e.getKey(), names);
+		}
+		addApplication(packager, classdir, includes, excludes);
+		appendLayer(index, LAYER_APPLICATION, Arrays.asList(BOOT_INF_CLASSES, LAYERS_INDEX, "META-INF/"));
+		packager.addEntry(LAYERS_INDEX, index.toString().getBytes(Charset.forName("UTF-8")));
+		Map<String, String> newManifest = getSpringBootManifest(mainfest);
+		newManifest.put("Spring-Boot-Layers-Index", LAYERS_INDEX);
+		packager.setManifest(newManifest);
+		// 嵌套的jar包必须直接存储，其它条目按策略压缩
+		packager.getPolicy().addRequired(BOOT_INF_LIB + "**");
+		return packager;
+	}
+
+	/**
+	 * 按{@link #LAYERS_INDEX}把分层的jar包解开到各层的目录（&lt;dir&gt;/&lt;层名&gt;/），条目归入第一个匹配的层，
+	 * 都不匹配的归入最后一层。文件的修改时间取条目的时间，可重现打包的jar包解开后各层也一致
+	 * 
+	 * @param jar 分层的jar包
+	 * @param dir 目标目录，已有的内容会被清除
+	 * @return 按顺序的层名
+	 * @throws IOException 异常
+	 */
+	public static List<String> extractLayers(File jar, File dir) throws IOException {
+		try (ZipFile zip = new ZipFile(jar)) {
+			ZipEntry indexEntry = zip.getEntry(LAYERS_INDEX);
+			if (null == indexEntry) {
+				throw new IOException(jar.getName() + "不是分层的jar包，没有" + LAYERS_INDEX);
+			}
+			Map<String, List<String>> layers;
+			try (InputStream in = zip.getInputStream(indexEntry)) {
+				layers = readLayersIndex(in);
+			}
+			if (layers.isEmpty()) {
+				throw new IOException(LAYERS_INDEX + "为空");
+			}
+			FileUtil.delate(dir, null);
+			List<String> names = new ArrayList<String>(layers.keySet());
+			for (String name : names) {
+				// 空的层也建出目录，镜像逐层复制时不必区分
+				new File(dir, name).mkdirs();
+			}
+			String last = names.get(names.size() - 1);
+			byte[] buffer = new byte[64 * 1024];
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (entry.isDirectory()) {
+					continue;
+				}
+				if (name.startsWith("/") || name.contains("../") || name.contains("..\\")) {
+					throw new IOException("不安全的条目名:" + name);
+				}
+				String layer = last;
+				for (Entry<String, List<String>> e : layers.entrySet()) {
+					if (matches(e.getValue(), name)) {
+						layer = e.getKey();
+						break;
+					}
+				}
+				File dest = new File(new File(dir, layer), name);
+				FileUtil.sureDir(dest);
+				try (InputStream in = zip.getInputStream(entry); OutputStream out = new FileOutputStream(dest)) {
+					int l;
+					while ((l = in.read(buffer)) > 0) {
+						out.write(buffer, 0, l);
+					}
+				}
+				if (entry.getTime() > 0) {
+					dest.setLastModified(entry.getTime());
+				}
+			}
+			return names;
+		}
+	}
+
+	/* 读取分层索引，层名到其条目名（以“/”结尾的为目录前缀） */
+	private static Map<String, List<String>> readLayersIndex(InputStream in) throws IOException {
+		Map<String, List<String>> layers = new LinkedHashMap<String, List<String>>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+		List<String> current = null;
+		String line;
+		while (null != (line = reader.readLine())) {
+			if (line.startsWith("- ") && line.endsWith(":")) {
+				current = new ArrayList<String>();
+				layers.put(unquote(line.substring(2, line.length() - 1)), current);
+			} else if (line.startsWith("  - ") && null != current) {
+				current.add(unquote(line.substring(4)));
+			}
+		}
+		return layers;
+	}
+
+	private static String unquote(String s) {
+		s = s.trim();
+		if (s.length() >= 2 && s.startsWith("\"") && s.endsWith("\"")) {
+			return s.substring(1, s.length() - 1);
+		}
+		return s;
+	}
+
+	/* 条目是否属于层 */
+	private static boolean matches(List<String> patterns, String name) {
+		for (String p : patterns) {
+			if (p.endsWith("/") ? name.startsWith(p) : name.equals(p)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* 分层索引中的一层 */
+	private static void appendLayer(StringBuilder index, String layer, List<String> names) {
+		index.append("- \"").append(layer).append("\":\n");
+		for (String name : names) {
+			index.append("  - \"").append(name).append("\"\n");
+		}
+	}
+
+	/**
+	 * 检查STORED条目的数据是否对齐
+	 * 
+	 * @param jar       jar包
+	 * @param alignment 对齐字节数
+	 * @param prefix    要检查的条目名前缀
+	 * @return 没有对齐的条目名
+	 * @throws IOException 异常
+	 */
+	public static List<String> checkAlignment(File jar, int alignment, String prefix) throws IOException {
+		List<String> names = new ArrayList<String>();
+		try (JarDirectory dir = JarDirectory.open(jar)) {
+			for (JarDirectory.Item item : dir.getItems()) {
+				if (item.isDirectory() || item.getMethod() != ZipEntry.STORED || item.getCompressedSize() == 0
+						|| !item.getName().startsWith(prefix)) {
+					continue;
+				}
+				if (dir.getDataOffset(item) % alignment != 0) {
+					names.add(item.getName());
+				}
 			}
 		}
-		org.codehaus.plexus.archiver.jar.Manifest newManifest = org.codehaus.plexus.archiver.jar.Manifest
-				.getDefaultManifest();
+		return names;
+	}
+
+	/* 应用的类文件与META-INF */
+	private static void addApplication(JarPackager packager, File classdir, String[] includes, String[] excludes) {
+		packager.addDirectory(classdir, BOOT_INF_CLASSES, includes, concat(excludes, "**/META-INF/**"));
+		for (File f : classdir.listFiles()) {
+			if (StringUtil.eq(f.getName(), "META-INF")) {
+				packager.addDirectory(f, "/META-INF/", null, concat(null, "**/MANIFEST.MF/**"));
+				break;
+			}
+		}
+	}
+
+	/* spring boot的清单属性 */
+	private static Map<String, String> getSpringBootManifest(Map<String, String> mainfest) {
+		Map<String, String> newManifest = getDefaultManifest();
 		String mainClass = mainfest.get("Main-Class");
 		mainfest.remove("Main-Class");
-		newManifest.addConfiguredAttribute(new Attribute("Start-Class", mainClass));
-		newManifest.addConfiguredAttribute(new Attribute("Main-Class", JarLauncher.class.getName()));
-		newManifest.addConfiguredAttribute(new Attribute("Spring-Boot-Classes", classes));
-		newManifest.addConfiguredAttribute(new Attribute("Spring-Boot-Lib", lib));
-		newManifest.addConfiguredAttribute(new Attribute("Spring-Boot-Version", "1.5.9.RELEASE"));
-		for (Entry<String, String> e : mainfest.entrySet()) {
-			newManifest.addConfiguredAttribute(new Attribute(e.getKey(), e.getValue()));
-		}
-		archiver.addConfiguredManifest(newManifest);
-		archiver.setCompress(false);
-		return archiver;
+		newManifest.put("Start-Class", mainClass);
+		newManifest.put("Main-Class", JarLauncher.class.getName());
+		newManifest.put("Spring-Boot-Classes", BOOT_INF_CLASSES);
+		newManifest.put("Spring-Boot-Lib", BOOT_INF_LIB);
+		newManifest.put("Spring-Boot-Version", "1.5.9.RELEASE");
+		newManifest.putAll(mainfest);
+		return newManifest;
+	}
+
+	/* 默认的清单属性 */
+	private static Map<String, String> getDefaultManifest() {
+		Map<String, String> manifest = new LinkedHashMap<String, String>();
+		manifest.put("Manifest-Version", "1.0");
+		manifest.put("Created-By", "Weforward Build Plugin");
+		return manifest;
 	}
 
 	private static String[] concat(String[] orgs, String v) {
@@ -137,23 +419,11 @@ public class JarUtil {
 		return arr;
 	}
 
-	private static void initSpringBootLoader(File boottmp, JarArchiver archiver) throws IOException {
+	/* 直接从spring-boot-loader的jar包复制加载器的类 */
+	private static void initSpringBootLoader(JarPackager packager) throws IOException {
 		URL url = Launcher.class.getProtectionDomain().getCodeSource().getLocation();
 		File jar = new File(URLDecoder.decode(url.getFile(), Charset.defaultCharset().name()));
-		JarFile jfile = new JarFile(jar);
-		Enumeration<JarEntry> e = jfile.entries();
-		while (e.hasMoreElements()) {
-			JarEntry entry = e.nextElement();
-			String name = entry.getName();
-			if (name.startsWith("META-INF/") || name.endsWith("/")) {
-				continue;
-			}
-			File f = new File(boottmp, name);
-			FileUtil.sureDir(f);
-			FileUtil.copyFile(jfile.getInputStream(entry), f.getAbsolutePath());
-			archiver.addFile(f, name);
-		}
-		jfile.close();
+		packager.addArchive(jar);
 	}
 
 }
@@ -0,0 +1,720 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * jar(zip)文件写入器
+ * <p>
+ * 只负责按顺序写入已经算好crc与压缩数据的条目，并在关闭时写入中央目录，压缩工作由调用方（如{@link JarPackager}）完成。
+ * 来自文件的数据用{@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}直接在内核中复制
+ * <p>
+ * 中央目录记录在写入条目时即编码到一块连续的字节缓冲中（条目名的索引也只是其中的位置），不为每个条目创建对象；
+ * 条目数超过65535或大小、位置超过4G时自动使用Zip64格式
+ * <p>
+ * 开启{@link #setDigest(boolean)}后在写入的同时计算整个文件的crc32与sha256，上传等后续步骤不必再读一遍生成的文件
+ *
+ * @author daibo
+ *
+ */
+public class JarWriter implements Closeable {
+	/** 本地文件头标识 */
+	static final int LOCSIG = 0x04034b50;
+	/** 中央目录标识 */
+	static final int CENSIG = 0x02014b50;
+	/** 中央目录结束标识 */
+	static final int ENDSIG = 0x06054b50;
+	/** Zip64中央目录结束标识 */
+	static final int ZIP64_ENDSIG = 0x06064b50;
+	/** Zip64中央目录结束定位标识 */
+	static final int ZIP64_LOCATORSIG = 0x07064b50;
+	/** Zip64扩展字段标识 */
+	static final int ZIP64_EXTRA_ID = 0x0001;
+	/** 超出此值的大小、位置与条目数由Zip64扩展字段记录 */
+	static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	/** Zip64格式要求的版本 */
+	private static final int ZIP64_VERSION = 45;
+	/** 中央目录记录的固定长度 */
+	private static final int CENTRAL_LENGTH = 46;
+	/** 文件名使用UTF-8编码的标识位 */
+	static final int FLAG_UTF8 = 1 << 11;
+	/** 文件名编码 */
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+	/** 缓冲区大小 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** 内存页大小 */
+	public static final int PAGE_SIZE = 4096;
+	/** 用于对齐的扩展字段标识（同Android zipalign） */
+	private static final int ALIGNMENT_EXTRA_ID = 0xD935;
+	/** 对齐扩展字段的最小长度：标识、长度与对齐值 */
+	private static final int ALIGNMENT_EXTRA_MIN = 6;
+
+	/** 文件输出流 */
+	private final FileOutputStream m_FileOut;
+	/** 文件通道，与输出流共用同一个文件位置 */
+	private final FileChannel m_Channel;
+	/** 输出流 */
+	private final OutputStream m_Out;
+	/** 当前写入位置 */
+	private long m_Offset;
+	/** 已编码的中央目录记录 */
+	private byte[] m_Central;
+	/** 中央目录记录的长度 */
+	private int m_CentralLength;
+	/** 条目名的开放寻址散列表，存放记录在中央目录中的位置+1，0为空 */
+	private int[] m_Table;
+	/** 已写入的条目数 */
+	private int m_Count;
+	/** 写字节用的缓冲 */
+	private final byte[] m_Buffer;
+	/** 是否已关闭 */
+	private boolean m_Closed;
+	/** 转换dos时间用的时区 */
+	private TimeZone m_TimeZone;
+	/** STORED条目数据的对齐字节数，0为不对齐 */
+	private int m_Alignment;
+	/** 要对齐的条目名前缀 */
+	private String m_AlignPrefix;
+	/** 整个文件的sha256，为null时不计算 */
+	private MessageDigest m_Sha256;
+	/** 整个文件的crc32 */
+	private CRC32 m_Crc;
+	/** 文件注释 */
+	private byte[] m_Comment;
+
+	public JarWriter(File file) throws IOException {
+		m_FileOut = new FileOutputStream(file);
+		m_Channel = m_FileOut.getChannel();
+		m_Out = new BufferedOutputStream(new DigestOutput(m_FileOut), BUFFER_SIZE);
+		m_Central = new byte[BUFFER_SIZE];
+		m_Table = new int[1024];
+		m_Buffer = new byte[BUFFER_SIZE];
+		m_TimeZone = TimeZone.getDefault();
+	}
+
+	/**
+	 * 设置转换dos时间用的时区，默认为本地时区
+	 *
+	 * @param zone 时区
+	 */
+	public void setTimeZone(TimeZone zone) {
+		m_TimeZone = zone;
+	}
+
+	/**
+	 * 设置STORED条目数据的对齐，通过在本地文件头的扩展字段中填充，使数据开始于对齐的位置（如内存页边界），便于直接映射
+	 *
+	 * @param alignment 对齐字节数，0为不对齐
+	 * @param prefix    要对齐的条目名前缀，为null时对齐所有STORED条目
+	 */
+	public void setAlignment(int alignment, String prefix) {
+		if (alignment < 0 || alignment > 0x8000) {
+			throw new IllegalArgumentException("对齐字节数不正确:" + alignment);
+		}
+		m_Alignment = alignment;
+		m_AlignPrefix = prefix;
+	}
+
+	/**
+	 * 设置是否计算整个文件的摘要，须在写入前设置
+	 *
+	 * @param digest 是否计算
+	 */
+	public void setDigest(boolean digest) {
+		if (m_Offset > 0) {
+			throw new IllegalStateException("已开始写入");
+		}
+		if (digest) {
+			m_Sha256 = DigestCache.newSha256();
+			m_Crc = new CRC32();
+		} else {
+			m_Sha256 = null;
+			m_Crc = null;
+		}
+	}
+
+	/**
+	 * 设置文件注释，写在中央目录结束记录中
+	 *
+	 * @param comment 注释，为null时没有注释
+	 */
+	public void setComment(String comment) {
+		byte[] bs = null == comment ? null : comment.getBytes(UTF_8);
+		if (null != bs && bs.length > 0xFFFF) {
+			throw new IllegalArgumentException("注释过长:" + bs.length);
+		}
+		m_Comment = bs;
+	}
+
+	/**
+	 * 是否已包含条目
+	 *
+	 * @param name 条目名
+	 * @return 已包含返回true
+	 */
+	public boolean contains(String name) {
+		byte[] bs = name.getBytes(UTF_8);
+		int mask = m_Table.length - 1;
+		for (int i = hash(bs, 0, bs.length) & mask; 0 != m_Table[i]; i = (i + 1) & mask) {
+			int pos = m_Table[i] - 1;
+			if (nameEquals(pos, bs)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 写入目录条目，已存在时忽略
+	 *
+	 * @param name 目录名，以“/”结尾
+	 * @param time 修改时间
+	 * @throws IOException IO异常
+	 */
+	public void putDirectory(String name, long time) throws IOException {
+		if (!name.endsWith("/")) {
+			name = name + "/";
+		}
+		if (contains(name)) {
+			return;
+		}
+		putParents(name, time);
+		writeLocal(name, time, ZipEntry.STORED, 0, 0, 0);
+	}
+
+	/**
+	 * 写入已压缩好的条目，已存在时忽略
+	 *
+	 * @param name   条目名
+	 * @param time   修改时间
+	 * @param method 压缩方式{@link ZipEntry#STORED}或{@link ZipEntry#DEFLATED}
+	 * @param crc    未压缩数据的crc32
+	 * @param size   未压缩的大小
+	 * @param data   （压缩后的）数据
+	 * @param off    数据的开始位置
+	 * @param len    数据长度
+	 * @return 写入返回true，已存在返回false
+	 * @throws IOException IO异常
+	 */
+	public boolean putEntry(String name, long time, int method, long crc, long size, byte[] data, int off, int len)
+			throws IOException {
+		if (contains(name)) {
+			return false;
+		}
+		putParents(name, time);
+		writeLocal(name, time, method, crc, size, len);
+		m_Out.write(data, off, len);
+		m_Offset += len;
+		return true;
+	}
+
+	/**
+	 * 写入由流提供（压缩后）数据的条目，已存在时忽略
+	 *
+	 * @param name   条目名
+	 * @param time   修改时间
+	 * @param method 压缩方式{@link ZipEntry#STORED}或{@link ZipEntry#DEFLATED}
+	 * @param crc    未压缩数据的crc32
+	 * @param size   未压缩的大小
+	 * @param csize  压缩后的大小，即要从流中读取的字节数
+	 * @param in     数据流
+	 * @return 写入返回true，已存在返回false
+	 * @throws IOException IO异常
+	 */
+	public boolean putEntry(String name, long time, int method, long crc, long size, long csize, InputStream in)
+			throws IOException {
+		if (contains(name)) {
+			return false;
+		}
+		putParents(name, time);
+		writeLocal(name, time, method, crc, size, csize);
+		long remaining = csize;
+		while (remaining > 0) {
+			int l = in.read(m_Buffer, 0, (int) Math.min(m_Buffer.length, remaining));
+			if (l < 0) {
+				throw new IOException(name + "数据不完整，还差" + remaining + "字节");
+			}
+			m_Out.write(m_Buffer, 0, l);
+			remaining -= l;
+		}
+		m_Offset += csize;
+		return true;
+	}
+
+	/**
+	 * 写入由文件提供（压缩后）数据的条目，数据直接由文件通道复制，已存在时忽略
+	 *
+	 * @param name     条目名
+	 * @param time     修改时间
+	 * @param method   压缩方式{@link ZipEntry#STORED}或{@link ZipEntry#DEFLATED}
+	 * @param crc      未压缩数据的crc32
+	 * @param size     未压缩的大小
+	 * @param csize    压缩后的大小，即要从通道中复制的字节数
+	 * @param in       文件通道
+	 * @param position 数据在通道中的开始位置
+	 * @return 写入返回true，已存在返回false
+	 * @throws IOException IO异常
+	 */
+	public boolean putEntry(String name, long time, int method, long crc, long size, long csize, FileChannel in,
+			long position) throws IOException {
+		if (contains(name)) {
+			return false;
+		}
+		putParents(name, time);
+		writeLocal(name, time, method, crc, size, csize);
+		// 先把缓冲的头写出，通道才在正确的位置上
+		m_Out.flush();
+		long remaining = csize;
+		while (remaining > 0) {
+			long l = in.transferTo(position, remaining, m_Channel);
+			if (l <= 0) {
+				if (position >= in.size()) {
+					throw new IOException(name + "数据不完整，还差" + remaining + "字节");
+				}
+				continue;
+			}
+			digest(in, position, l);
+			position += l;
+			remaining -= l;
+		}
+		m_Offset += csize;
+		return true;
+	}
+
+	/* 由通道直接复制的数据不经过输出流，从来源（通常还在页缓存中）读出计入摘要 */
+	private void digest(FileChannel in, long position, long length) throws IOException {
+		if (null == m_Sha256) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(m_Buffer);
+		while (length > 0) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), length));
+			int l = in.read(buffer, position);
+			if (l <= 0) {
+				throw new IOException("读取数据失败，还差" + length + "字节");
+			}
+			m_Sha256.update(m_Buffer, 0, l);
+			m_Crc.update(m_Buffer, 0, l);
+			position += l;
+			length -= l;
+		}
+	}
+
+	/**
+	 * 写入文件内容作为条目的（压缩后）数据，已存在时忽略
+	 *
+	 * @param name   条目名
+	 * @param time   修改时间
+	 * @param method 压缩方式{@link ZipEntry#STORED}或{@link ZipEntry#DEFLATED}
+	 * @param crc    未压缩数据的crc32
+	 * @param size   未压缩的大小
+	 * @param csize  压缩后的大小，即文件大小
+	 * @param file   文件
+	 * @return 写入返回true，已存在返回false
+	 * @throws IOException IO异常
+	 */
+	public boolean putEntry(String name, long time, int method, long crc, long size, long csize, File file)
+			throws IOException {
+		try (FileInputStream in = new FileInputStream(file)) {
+			return putEntry(name, time, method, crc, size, csize, in.getChannel(), 0);
+		}
+	}
+
+	/* 补全上级目录条目 */
+	private void putParents(String name, long time) throws IOException {
+		int idx = name.lastIndexOf('/', name.length() - 2);
+		if (idx <= 0) {
+			return;
+		}
+		String parent = name.substring(0, idx + 1);
+		if (contains(parent)) {
+			return;
+		}
+		putParents(parent, time);
+		writeLocal(parent, time, ZipEntry.STORED, 0, 0, 0);
+	}
+
+	/* 写入本地文件头 */
+	private void writeLocal(String name, long time, int method, long crc, long size, long csize)
+			throws IOException {
+		if (m_Closed) {
+			throw new IOException("已关闭");
+		}
+		byte[] nameBytes = name.getBytes(UTF_8);
+		// 本地文件头中的Zip64扩展字段必须同时有两个大小
+		boolean zip64 = size >= ZIP64_MAGIC || csize >= ZIP64_MAGIC;
+		int zip64Length = zip64 ? 20 : 0;
+		int padding = 0;
+		if (m_Alignment > 0 && method == ZipEntry.STORED && csize > 0
+				&& (null == m_AlignPrefix || name.startsWith(m_AlignPrefix))) {
+			long data = m_Offset + 30 + nameBytes.length + zip64Length;
+			padding = (int) ((m_Alignment - data % m_Alignment) % m_Alignment);
+			// 扩展字段至少要放下标识、长度与对齐值，对齐字节数小于此长度时（如常用的4）要加多次
+			while (padding > 0 && padding < ALIGNMENT_EXTRA_MIN) {
+				padding += m_Alignment;
+			}
+		}
+		long offset = m_Offset;
+		long dosTime = toDosTime(time, m_TimeZone);
+		int version = zip64 ? ZIP64_VERSION : version(method);
+		writeInt(LOCSIG);
+		writeShort(version);
+		writeShort(FLAG_UTF8);
+		writeShort(method);
+		writeInt(dosTime);
+		writeInt(crc);
+		writeInt(zip64 ? ZIP64_MAGIC : csize);
+		writeInt(zip64 ? ZIP64_MAGIC : size);
+		writeShort(nameBytes.length);
+		writeShort(zip64Length + padding);
+		m_Out.write(nameBytes);
+		m_Offset += nameBytes.length;
+		if (zip64) {
+			writeShort(ZIP64_EXTRA_ID);
+			writeShort(16);
+			writeLong(size);
+			writeLong(csize);
+		}
+		if (padding > 0) {
+			writeShort(ALIGNMENT_EXTRA_ID);
+			writeShort(padding - 4);
+			writeShort(m_Alignment);
+			for (int i = ALIGNMENT_EXTRA_MIN; i < padding; i++) {
+				m_Out.write(0);
+			}
+			m_Offset += padding - ALIGNMENT_EXTRA_MIN;
+		}
+		addCentral(nameBytes, method, dosTime, crc, size, csize, offset);
+	}
+
+	/* 编码中央目录记录，超出4G的大小与位置放入Zip64扩展字段 */
+	private void addCentral(byte[] name, int method, long dosTime, long crc, long size, long csize, long offset)
+			throws IOException {
+		int fields = (size >= ZIP64_MAGIC ? 1 : 0) + (csize >= ZIP64_MAGIC ? 1 : 0) + (offset >= ZIP64_MAGIC ? 1 : 0);
+		int extra = fields > 0 ? 4 + 8 * fields : 0;
+		int length = CENTRAL_LENGTH + name.length + extra;
+		if (m_CentralLength + length < 0 || m_CentralLength + length > Integer.MAX_VALUE - 8) {
+			throw new IOException("中央目录超出2G");
+		}
+		if (m_CentralLength + length > m_Central.length) {
+			int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+					Math.max((long) m_Central.length * 2, m_CentralLength + length));
+			m_Central = Arrays.copyOf(m_Central, capacity);
+		}
+		int version = fields > 0 ? ZIP64_VERSION : version(method);
+		int pos = m_CentralLength;
+		int p = pos;
+		p = putInt(p, CENSIG);
+		p = putShort(p, version);
+		p = putShort(p, version);
+		p = putShort(p, FLAG_UTF8);
+		p = putShort(p, method);
+		p = putInt(p, dosTime);
+		p = putInt(p, crc);
+		p = putInt(p, Math.min(csize, ZIP64_MAGIC));
+		p = putInt(p, Math.min(size, ZIP64_MAGIC));
+		p = putShort(p, name.length);
+		p = putShort(p, extra);
+		p = putShort(p, 0);
+		p = putShort(p, 0);
+		p = putShort(p, 0);
+		p = putInt(p, isDirectory(name) ? 0x10 : 0);
+		p = putInt(p, Math.min(offset, ZIP64_MAGIC));
+		System.arraycopy(name, 0, m_Central, p, name.length);
+		p += name.length;
+		if (fields > 0) {
+			p = putShort(p, ZIP64_EXTRA_ID);
+			p = putShort(p, 8 * fields);
+			if (size >= ZIP64_MAGIC) {
+				p = putLong(p, size);
+			}
+			if (csize >= ZIP64_MAGIC) {
+				p = putLong(p, csize);
+			}
+			if (offset >= ZIP64_MAGIC) {
+				p = putLong(p, offset);
+			}
+		}
+		m_CentralLength = p;
+		m_Count++;
+		index(pos, name);
+	}
+
+	/* 把记录加入条目名的散列表，装载超过一半时扩容 */
+	private void index(int pos, byte[] name) {
+		if (m_Count * 2 > m_Table.length) {
+			int[] old = m_Table;
+			m_Table = new int[old.length * 2];
+			for (int v : old) {
+				if (0 != v) {
+					int p = v - 1;
+					int nlen = getShort(m_Central, p + 28);
+					insert(hash(m_Central, p + CENTRAL_LENGTH, nlen), v);
+				}
+			}
+		}
+		insert(hash(name, 0, name.length), pos + 1);
+	}
+
+	private void insert(int hash, int value) {
+		int mask = m_Table.length - 1;
+		int i = hash & mask;
+		while (0 != m_Table[i]) {
+			i = (i + 1) & mask;
+		}
+		m_Table[i] = value;
+	}
+
+	/* 中央目录中pos处记录的条目名是否与name相同 */
+	private boolean nameEquals(int pos, byte[] name) {
+		if (getShort(m_Central, pos + 28) != name.length) {
+			return false;
+		}
+		int off = pos + CENTRAL_LENGTH;
+		for (int i = 0; i < name.length; i++) {
+			if (m_Central[off + i] != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(byte[] bs, int off, int len) {
+		int h = 0;
+		for (int i = off; i < off + len; i++) {
+			h = 31 * h + bs[i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * 写入中央目录并关闭
+	 */
+	@Override
+	public void close() throws IOException {
+		if (m_Closed) {
+			return;
+		}
+		try {
+			long start = m_Offset;
+			m_Out.write(m_Central, 0, m_CentralLength);
+			m_Offset += m_CentralLength;
+			long length = m_CentralLength;
+			if (m_Count >= 0xFFFF || start >= ZIP64_MAGIC) {
+				long end = m_Offset;
+				writeInt(ZIP64_ENDSIG);
+				writeLong(44);
+				writeShort(ZIP64_VERSION);
+				writeShort(ZIP64_VERSION);
+				writeInt(0);
+				writeInt(0);
+				writeLong(m_Count);
+				writeLong(m_Count);
+				writeLong(length);
+				writeLong(start);
+				writeInt(ZIP64_LOCATORSIG);
+				writeInt(0);
+				writeLong(end);
+				writeInt(1);
+			}
+			writeInt(ENDSIG);
+			writeShort(0);
+			writeShort(0);
+			writeShort(Math.min(m_Count, 0xFFFF));
+			writeShort(Math.min(m_Count, 0xFFFF));
+			writeInt(Math.min(length, ZIP64_MAGIC));
+			writeInt(Math.min(start, ZIP64_MAGIC));
+			if (null == m_Comment) {
+				writeShort(0);
+			} else {
+				writeShort(m_Comment.length);
+				m_Out.write(m_Comment);
+				m_Offset += m_Comment.length;
+			}
+			m_Out.flush();
+		} finally {
+			m_Closed = true;
+			m_Out.close();
+		}
+	}
+
+	/**
+	 * 已写入的字节数
+	 *
+	 * @return 字节数
+	 */
+	public long getOffset() {
+		return m_Offset;
+	}
+
+	/**
+	 * 整个文件的摘要，关闭后可用
+	 *
+	 * @param file 写入的文件，用于记录修改时间
+	 * @return 未开启{@link #setDigest(boolean)}或未关闭时返回null
+	 */
+	public DigestCache.Digest getDigest(File file) {
+		if (null == m_Sha256 || !m_Closed) {
+			return null;
+		}
+		return new DigestCache.Digest(m_Offset, file.lastModified(), m_Crc.getValue(),
+				DigestCache.toHex(m_Sha256.digest()));
+	}
+
+	/**
+	 * 已写入的条目数
+	 *
+	 * @return 条目数
+	 */
+	public int getCount() {
+		return m_Count;
+	}
+
+	private static boolean isDirectory(byte[] name) {
+		return name.length > 0 && name[name.length - 1] == '/';
+	}
+
+	private static int version(int method) {
+		return method == ZipEntry.DEFLATED ? 20 : 10;
+	}
+
+	private void writeShort(int v) throws IOException {
+		m_Out.write(v & 0xff);
+		m_Out.write((v >>> 8) & 0xff);
+		m_Offset += 2;
+	}
+
+	private void writeInt(long v) throws IOException {
+		m_Out.write((int) (v & 0xff));
+		m_Out.write((int) ((v >>> 8) & 0xff));
+		m_Out.write((int) ((v >>> 16) & 0xff));
+		m_Out.write((int) ((v >>> 24) & 0xff));
+		m_Offset += 4;
+	}
+
+	private void writeLong(long v) throws IOException {
+		writeInt(v & 0xFFFFFFFFL);
+		writeInt(v >>> 32);
+	}
+
+	private int putShort(int pos, int v) {
+		m_Central[pos] = (byte) v;
+		m_Central[pos + 1] = (byte) (v >>> 8);
+		return pos + 2;
+	}
+
+	private int putInt(int pos, long v) {
+		putShort(pos, (int) (v & 0xffff));
+		putShort(pos + 2, (int) ((v >>> 16) & 0xffff));
+		return pos + 4;
+	}
+
+	private int putLong(int pos, long v) {
+		putInt(pos, v & 0xFFFFFFFFL);
+		putInt(pos + 4, v >>> 32);
+		return pos + 8;
+	}
+
+	private static int getShort(byte[] bs, int off) {
+		return (bs[off] & 0xff) | ((bs[off + 1] & 0xff) << 8);
+	}
+
+	/**
+	 * 转换为MS-DOS格式的时间
+	 *
+	 * @param time 毫秒时间
+	 * @return dos时间
+	 */
+	public static long toDosTime(long time) {
+		return toDosTime(time, TimeZone.getDefault());
+	}
+
+	/**
+	 * 按指定时区转换为MS-DOS格式的时间
+	 *
+	 * @param time 毫秒时间
+	 * @param zone 时区
+	 * @return dos时间
+	 */
+	public static long toDosTime(long time, TimeZone zone) {
+		Calendar cal = Calendar.getInstance(zone);
+		cal.setTimeInMillis(time);
+		int year = cal.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return ((year - 1980) << 25) | ((cal.get(Calendar.MONTH) + 1) << 21) | (cal.get(Calendar.DAY_OF_MONTH) << 16)
+				| (cal.get(Calendar.HOUR_OF_DAY) << 11) | (cal.get(Calendar.MINUTE) << 5)
+				| (cal.get(Calendar.SECOND) >> 1);
+	}
+
+	/**
+	 * 由MS-DOS格式的时间转换
+	 *
+	 * @param dosTime dos时间
+	 * @return 毫秒时间
+	 */
+	public static long fromDosTime(long dosTime) {
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set((int) ((dosTime >> 25) & 0x7f) + 1980, (int) ((dosTime >> 21) & 0x0f) - 1,
+				(int) ((dosTime >> 16) & 0x1f), (int) ((dosTime >> 11) & 0x1f), (int) ((dosTime >> 5) & 0x3f),
+				(int) ((dosTime << 1) & 0x3e));
+		return cal.getTimeInMillis();
+	}
+
+	/**
+	 * 经过时计入摘要的输出流
+	 */
+	private class DigestOutput extends FilterOutputStream {
+
+		DigestOutput(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			if (null != m_Sha256) {
+				m_Sha256.update((byte) b);
+				m_Crc.update(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if (null != m_Sha256) {
+				m_Sha256.update(b, off, len);
+				m_Crc.update(b, off, len);
+			}
+		}
+	}
+}
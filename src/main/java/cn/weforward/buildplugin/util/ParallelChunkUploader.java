@@ -0,0 +1,422 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelProgressiveFuture;
+import io.netty.channel.ChannelProgressiveFutureListener;
+import io.netty.channel.ChannelProgressivePromise;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.CharsetUtil;
+
+/**
+ * 多连接并行上传块
+ * <p>
+ * 多个连接共用一个事件循环组，各自从同一个队列取块，以保持连接（HTTP/1.1）逐个PUT，协议同{@link ResumableUploader}，
+ * 由服务端在完成上传时拼接。多个连接各自有拥塞窗口，在高延迟的链路上能用满带宽。块内容以{@link DefaultFileRegion}直接发送，
+ * https时读到缓冲区发送。
+ * <p>
+ * 一个连接失败（断开、停滞、错误响应）时它正在传的块留给下一轮补传，其它连接继续；全部结束后有失败即抛出，由调用者重新查询后补传
+ *
+ * @author daibo
+ *
+ */
+class ParallelChunkUploader {
+	/** 连接超时 */
+	private static final int CONNECT_TIMEOUT = 10 * 1000;
+	/** 响应的最大长度 */
+	private static final int MAX_RESPONSE = 64 * 1024;
+
+	/** 事件循环组 */
+	private final EventLoopGroup m_Group;
+	/** 文件 */
+	private final File m_File;
+	/** 上传地址（含文件名，不含查询） */
+	private final URI m_Uri;
+	/** 上传标识 */
+	private final String m_Upload;
+	/** 认证头 */
+	private final String m_Authorization;
+	/** 各块的sha256 */
+	private final String[] m_ChunkSha256;
+	/** 块大小 */
+	private final int m_ChunkSize;
+	/** 停滞时间（毫秒） */
+	private final int m_StallTimeout;
+	/** 进度回调 */
+	private final Listener m_Listener;
+	/** 待传的块 */
+	private final Queue<Integer> m_Queue;
+	/** 失败 */
+	private final Queue<IOException> m_Failures;
+	/** 各连接 */
+	private final List<Channel> m_Channels;
+	/** https时的加密上下文 */
+	private SslContext m_SslContext;
+
+	/**
+	 * 构造
+	 *
+	 * @param group         事件循环组
+	 * @param file          文件
+	 * @param url           上传地址（含文件名）
+	 * @param upload        上传标识（整个文件的sha256）
+	 * @param authorization 认证头，为null时不认证
+	 * @param chunkSha256   各块的sha256
+	 * @param chunkSize     块大小
+	 * @param stallTimeout  停滞时间（毫秒）
+	 * @param listener      进度回调
+	 * @throws IOException IO异常
+	 */
+	ParallelChunkUploader(EventLoopGroup group, File file, String url, String upload, String authorization,
+			String[] chunkSha256, int chunkSize, int stallTimeout, Listener listener) throws IOException {
+		m_Group = group;
+		m_File = file;
+		try {
+			m_Uri = new URI(url);
+		} catch (URISyntaxException e) {
+			throw new IOException(url + "不合法", e);
+		}
+		m_Upload = upload;
+		m_Authorization = authorization;
+		m_ChunkSha256 = chunkSha256;
+		m_ChunkSize = chunkSize;
+		m_StallTimeout = stallTimeout;
+		m_Listener = listener;
+		m_Queue = new ConcurrentLinkedQueue<Integer>();
+		m_Failures = new ConcurrentLinkedQueue<IOException>();
+		m_Channels = new ArrayList<Channel>();
+		if ("https".equalsIgnoreCase(m_Uri.getScheme())) {
+			m_SslContext = SslContextBuilder.forClient().build();
+		}
+	}
+
+	/**
+	 * 上传块
+	 *
+	 * @param chunks      要上传的块
+	 * @param connections 连接数
+	 * @throws IOException          有块上传失败
+	 * @throws InterruptedException 中断异常
+	 */
+	void upload(List<Integer> chunks, int connections) throws IOException, InterruptedException {
+		m_Queue.addAll(chunks);
+		int n = Math.max(1, Math.min(connections, chunks.size()));
+		final CountDownLatch latch = new CountDownLatch(n);
+		final String host = m_Uri.getHost();
+		int port = m_Uri.getPort();
+		if (port == -1) {
+			port = null == m_SslContext ? 80 : 443;
+		}
+		final int p = port;
+		Bootstrap bootstrap = new Bootstrap();
+		bootstrap.group(m_Group).channel(NioSocketChannel.class).option(ChannelOption.SO_KEEPALIVE, true)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT)
+				.handler(new ChannelInitializer<Channel>() {
+
+					@Override
+					protected void initChannel(Channel channel) throws Exception {
+						if (null != m_SslContext) {
+							channel.pipeline().addLast(DistUtil.newSslHandler(m_SslContext, channel.alloc(), host, p));
+						}
+						// 观察输出缓冲的变化，大的块发送中也不会误判为停滞
+						channel.pipeline().addLast(new IdleStateHandler(true, m_StallTimeout, m_StallTimeout, 0,
+								TimeUnit.MILLISECONDS));
+						channel.pipeline().addLast(new HttpClientCodec());
+						channel.pipeline().addLast(new HttpObjectAggregator(MAX_RESPONSE));
+						channel.pipeline().addLast(new ChunkHandler());
+					}
+				});
+		try {
+			for (int i = 0; i < n; i++) {
+				ChannelFuture future = bootstrap.connect(host, port);
+				synchronized (m_Channels) {
+					m_Channels.add(future.channel());
+				}
+				future.addListener(new ChannelFutureListener() {
+
+					@Override
+					public void operationComplete(ChannelFuture f) {
+						if (!f.isSuccess()) {
+							m_Failures.add(new IOException("连接" + host + "失败:" + f.cause(), f.cause()));
+						}
+						f.channel().closeFuture().addListener(new ChannelFutureListener() {
+
+							@Override
+							public void operationComplete(ChannelFuture cf) {
+								latch.countDown();
+							}
+						});
+					}
+				});
+			}
+			latch.await();
+		} finally {
+			closeAll();
+		}
+		if (!m_Failures.isEmpty()) {
+			IOException first = null;
+			for (IOException e : m_Failures) {
+				if (e instanceof ResumableUploader.StatusException && !ResumableUploader.isRetryable(e)) {
+					throw e;
+				}
+				if (null == first) {
+					first = e;
+				}
+			}
+			throw first;
+		}
+		if (!m_Queue.isEmpty()) {
+			throw new IOException("还有" + m_Queue.size() + "块未上传");
+		}
+	}
+
+	/* 不能重试的失败时停止所有连接 */
+	private void fail(IOException e) {
+		m_Failures.add(e);
+		if (e instanceof ResumableUploader.StatusException && !ResumableUploader.isRetryable(e)) {
+			m_Queue.clear();
+			closeAll();
+		}
+	}
+
+	private void closeAll() {
+		synchronized (m_Channels) {
+			for (Channel c : m_Channels) {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * 进度回调，在事件循环中调用
+	 */
+	interface Listener {
+		/**
+		 * 块发送中
+		 *
+		 * @param delta 新发送的字节数，块失败时为负数（撤回已计入的）
+		 */
+		void sending(long delta);
+
+		/**
+		 * 块已被服务端确认
+		 *
+		 * @param index 块序号
+		 * @param len   块大小
+		 */
+		void done(int index, int len);
+	}
+
+	/**
+	 * 一个连接，逐个上传队列中的块
+	 */
+	class ChunkHandler extends ChannelInboundHandlerAdapter {
+		/** 正在上传的块，-1为没有 */
+		int m_Index = -1;
+		/** 正在上传的块的大小 */
+		int m_Length;
+		/** 正在上传的块已计入进度的字节数 */
+		long m_Progress;
+		/** 块是否已发送完，在等待响应 */
+		boolean m_Waiting;
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) throws Exception {
+			next(ctx);
+			super.channelActive(ctx);
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			if (!(msg instanceof FullHttpResponse)) {
+				super.channelRead(ctx, msg);
+				return;
+			}
+			FullHttpResponse response = (FullHttpResponse) msg;
+			try {
+				int code = response.status().code();
+				if (m_Index < 0) {
+					return;
+				}
+				if (code < 200 || code >= 300) {
+					failChunk(ctx, new ResumableUploader.StatusException(code, "上传第" + m_Index + "块失败，响应码" + code
+							+ ":" + response.content().toString(CharsetUtil.UTF_8)));
+					return;
+				}
+				m_Listener.done(m_Index, m_Length);
+				m_Index = -1;
+				m_Waiting = false;
+				next(ctx);
+			} finally {
+				response.release();
+			}
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+			if (m_Index >= 0) {
+				failChunk(ctx, new IOException("上传第" + m_Index + "块时连接已断开"));
+			}
+			super.channelInactive(ctx);
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+			failChunk(ctx, cause instanceof IOException ? (IOException) cause : new IOException(cause));
+			ctx.close();
+		}
+
+		@Override
+		public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+			if (evt instanceof IdleStateEvent && m_Index >= 0) {
+				IdleState state = ((IdleStateEvent) evt).state();
+				// 发送中只看写出，发送完只看响应
+				if ((!m_Waiting && state == IdleState.WRITER_IDLE) || (m_Waiting && state == IdleState.READER_IDLE)) {
+					failChunk(ctx, new IOException("上传第" + m_Index + "块停滞"));
+				}
+				return;
+			}
+			super.userEventTriggered(ctx, evt);
+		}
+
+		/* 取下一块上传，没有了就关闭连接 */
+		private void next(final ChannelHandlerContext ctx) {
+			Integer index = m_Queue.poll();
+			if (null == index) {
+				ctx.close();
+				return;
+			}
+			m_Index = index;
+			long offset = (long) m_Index * m_ChunkSize;
+			m_Length = (int) Math.min(m_ChunkSize, m_File.length() - offset);
+			m_Progress = 0;
+			m_Waiting = false;
+			DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.PUT,
+					m_Uri.getRawPath() + "?upload=" + m_Upload + "&chunk=" + m_Index);
+			request.headers().add(HttpHeaderNames.HOST, DistUtil.getHostHeader(m_Uri));
+			request.headers().add(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM);
+			request.headers().add(HttpHeaderNames.CONTENT_LENGTH, m_Length);
+			request.headers().add(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+			request.headers().add(ResumableUploader.CHUNK_SHA256_HEADER, m_ChunkSha256[m_Index]);
+			if (null != m_Authorization) {
+				request.headers().add(HttpHeaderNames.AUTHORIZATION, m_Authorization);
+			}
+			Object content;
+			try {
+				if (null == m_SslContext) {
+					content = new DefaultFileRegion(m_File, offset, m_Length);
+				} else {
+					content = new DefaultHttpContent(read(ctx, offset, m_Length));
+				}
+			} catch (IOException e) {
+				failChunk(ctx, e);
+				return;
+			}
+			ctx.write(request);
+			ChannelProgressivePromise promise = ctx.newProgressivePromise();
+			promise.addListener(new ChannelProgressiveFutureListener() {
+
+				@Override
+				public void operationProgressed(ChannelProgressiveFuture future, long progress, long total) {
+					if (progress > m_Progress) {
+						m_Listener.sending(progress - m_Progress);
+						m_Progress = progress;
+					}
+				}
+
+				@Override
+				public void operationComplete(ChannelProgressiveFuture future) {
+				}
+			});
+			ctx.write(content, promise);
+			ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(new ChannelFutureListener() {
+
+				@Override
+				public void operationComplete(ChannelFuture future) {
+					if (future.isSuccess()) {
+						if (m_Progress < m_Length) {
+							m_Listener.sending(m_Length - m_Progress);
+							m_Progress = m_Length;
+						}
+						m_Waiting = true;
+					} else {
+						failChunk(ctx, new IOException("上传第" + m_Index + "块失败:" + future.cause(), future.cause()));
+					}
+				}
+			});
+		}
+
+		/* 读取一块到缓冲区 */
+		private ByteBuf read(ChannelHandlerContext ctx, long offset, int len) throws IOException {
+			ByteBuf buf = ctx.alloc().buffer(len);
+			try (RandomAccessFile raf = new RandomAccessFile(m_File, "r")) {
+				while (buf.writableBytes() > 0) {
+					if (buf.writeBytes(raf.getChannel(), offset + buf.writerIndex(), buf.writableBytes()) < 0) {
+						throw new IOException(m_File + "已被截短");
+					}
+				}
+				return buf;
+			} catch (IOException | RuntimeException e) {
+				buf.release();
+				throw e;
+			}
+		}
+
+		/* 当前块失败，留给下一轮补传，关闭连接 */
+		private void failChunk(ChannelHandlerContext ctx, IOException e) {
+			if (m_Index < 0) {
+				return;
+			}
+			m_Listener.sending(-m_Progress);
+			m_Index = -1;
+			fail(e);
+			ctx.close();
+		}
+	}
+}
@@ -0,0 +1,507 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+
+import cn.weforward.buildplugin.UploadProgressBar;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+/**
+ * 可续传的分块上传
+ * <p>
+ * 文件按固定大小分块，以整个文件的sha256作为上传标识，与服务端的约定（均以&lt;url&gt;&lt;文件名&gt;为地址）：
+ * <ul>
+ * <li>GET ?upload=&lt;sha256&gt;&amp;size=&lt;大小&gt;&amp;chunkSize=&lt;块大小&gt;：查询已收到的块，
+ * 响应为以逗号或空白分隔的块序号，404表示还没有</li>
+ * <li>PUT ?upload=&lt;sha256&gt;&amp;chunk=&lt;序号&gt;：上传一块，头X-Chunk-Sha256为该块的sha256，服务端校验不符时返回409或422</li>
+ * <li>POST ?upload=&lt;sha256&gt;&amp;finalize&amp;size=&lt;大小&gt;：所有块已上传，服务端拼接并校验整个文件的sha256后发布</li>
+ * </ul>
+ * 连接断开、超时、5xx、409、422与429时等待后重新查询已收到的块，只补传缺少的，等待时间按次数加倍；有进展时重新计次。
+ * 写出时超过停滞时间没有进展即断开连接，不会一直卡在写操作上。
+ * <p>
+ * 连接数大于1时由{@link ParallelChunkUploader}以多个连接同时上传缺少的块，进度汇总到同一个进度条
+ *
+ * @author daibo
+ *
+ */
+public class ResumableUploader {
+	/** 默认块大小 */
+	public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+	/** 默认的停滞时间（毫秒） */
+	public static final int DEFAULT_STALL_TIMEOUT = 30 * 1000;
+	/** 默认的连续重试次数 */
+	public static final int DEFAULT_MAX_RETRIES = 5;
+	/** 首次重试前的等待时间（毫秒） */
+	private static final long INITIAL_BACKOFF = 1000;
+	/** 最长的重试等待时间（毫秒） */
+	private static final long MAX_BACKOFF = 30 * 1000;
+	/** 连接超时 */
+	private static final int CONNECT_TIMEOUT = 10 * 1000;
+	/** 拼接校验整个文件可能较久，等待完成的读取超时 */
+	private static final int FINALIZE_TIMEOUT = 10 * 60 * 1000;
+	/** 写出时更新进度的粒度 */
+	private static final int WRITE_SIZE = 64 * 1024;
+	/** 块校验和的请求头 */
+	public static final String CHUNK_SHA256_HEADER = "X-Chunk-Sha256";
+
+	/** 检查停滞的线程 */
+	private static final ScheduledExecutorService WATCHDOG = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "upload-watchdog");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/** 上传地址（含文件名） */
+	private final String m_Url;
+	/** 文件 */
+	private final File m_File;
+	/** 认证头，为null时不认证 */
+	private final String m_Authorization;
+	/** 块大小 */
+	private int m_ChunkSize = DEFAULT_CHUNK_SIZE;
+	/** 停滞时间（毫秒） */
+	private int m_StallTimeout = DEFAULT_STALL_TIMEOUT;
+	/** 连续重试次数 */
+	private int m_MaxRetries = DEFAULT_MAX_RETRIES;
+	/** 进度条 */
+	private UploadProgressBar m_ProgressBar;
+	/** 整个文件的sha256 */
+	private String m_Sha256;
+	/** 各块的sha256 */
+	private String[] m_ChunkSha256;
+	/** 已确认收到的字节数 */
+	private long m_Done;
+	/** 并行上传的连接数 */
+	private int m_Connections = 1;
+	/** 并行上传发送中（未确认）的字节数 */
+	private long m_Sending;
+
+	/**
+	 * 构造
+	 *
+	 * @param disturl  上传链接，文件上传到&lt;disturl&gt;&lt;文件名&gt;
+	 * @param file     文件
+	 * @param username 用户名，为空时不认证
+	 * @param password 密码
+	 */
+	public ResumableUploader(String disturl, File file, String username, String password) {
+		try {
+			m_Url = disturl + URLEncoder.encode(file.getName(), "UTF-8").replace("+", "%20");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		m_File = file;
+		if (StringUtil.isEmpty(username) || StringUtil.isEmpty(password)) {
+			m_Authorization = null;
+		} else {
+			String s = username + ":" + password;
+			m_Authorization = "Basic " + new String(Base64.encodeBase64(s.getBytes(JarWriter.UTF_8)), JarWriter.UTF_8);
+		}
+	}
+
+	/**
+	 * 块大小
+	 *
+	 * @param size 字节数，不大于0时为默认值
+	 */
+	public void setChunkSize(int size) {
+		m_ChunkSize = size > 0 ? size : DEFAULT_CHUNK_SIZE;
+		m_ChunkSha256 = null;
+	}
+
+	/**
+	 * 停滞时间，写出或等待响应超过此时间没有进展即断开重试
+	 *
+	 * @param millis 毫秒，不大于0时为默认值
+	 */
+	public void setStallTimeout(int millis) {
+		m_StallTimeout = millis > 0 ? millis : DEFAULT_STALL_TIMEOUT;
+	}
+
+	/**
+	 * 没有进展时的最多重试次数
+	 *
+	 * @param retries 次数
+	 */
+	public void setMaxRetries(int retries) {
+		m_MaxRetries = Math.max(0, retries);
+	}
+
+	/**
+	 * 并行上传的连接数
+	 *
+	 * @param connections 连接数，不大于1时逐块上传
+	 */
+	public void setConnections(int connections) {
+		m_Connections = Math.max(1, connections);
+	}
+
+	/**
+	 * 进度条
+	 *
+	 * @param progressBar 进度条
+	 */
+	public void setProgressBar(UploadProgressBar progressBar) {
+		m_ProgressBar = progressBar;
+	}
+
+	/**
+	 * 上传
+	 *
+	 * @throws IOException          IO异常
+	 * @throws InterruptedException 中断异常
+	 */
+	public void upload() throws IOException, InterruptedException {
+		try {
+			prepare();
+			if (null != m_ProgressBar) {
+				m_ProgressBar.start();
+			}
+			int retries = 0;
+			long backoff = INITIAL_BACKOFF;
+			while (true) {
+				long before = m_Done;
+				try {
+					BitSet received = queryReceived();
+					uploadMissing(received);
+					finish();
+					if (null != m_ProgressBar) {
+						m_ProgressBar.end();
+					}
+					return;
+				} catch (IOException e) {
+					if (!isRetryable(e)) {
+						throw e;
+					}
+					if (m_Done > before) {
+						// 有进展，重新计次
+						retries = 0;
+						backoff = INITIAL_BACKOFF;
+					}
+					if (++retries > m_MaxRetries) {
+						throw e;
+					}
+					Thread.sleep(backoff);
+					backoff = Math.min(MAX_BACKOFF, backoff * 2);
+				}
+			}
+		} catch (IOException e) {
+			if (null != m_ProgressBar) {
+				m_ProgressBar.exception(e);
+			}
+			throw e;
+		}
+	}
+
+	/* 计算整个文件与各块的sha256 */
+	private void prepare() throws IOException {
+		if (null != m_ChunkSha256) {
+			return;
+		}
+		long size = m_File.length();
+		int count = getChunkCount(size);
+		String[] chunks = new String[count];
+		MessageDigest whole = DigestCache.newSha256();
+		MessageDigest chunk = DigestCache.newSha256();
+		byte[] buffer = new byte[WRITE_SIZE];
+		try (InputStream in = new FileInputStream(m_File)) {
+			for (int i = 0; i < count; i++) {
+				long remain = getChunkLength(i, size);
+				while (remain > 0) {
+					int l = in.read(buffer, 0, (int) Math.min(buffer.length, remain));
+					if (l < 0) {
+						throw new IOException(m_File + "已被截短");
+					}
+					whole.update(buffer, 0, l);
+					chunk.update(buffer, 0, l);
+					remain -= l;
+				}
+				chunks[i] = DigestCache.toHex(chunk.digest());
+			}
+		}
+		m_Sha256 = DigestCache.toHex(whole.digest());
+		m_ChunkSha256 = chunks;
+	}
+
+	/* 查询服务端已收到的块 */
+	private BitSet queryReceived() throws IOException {
+		long size = m_File.length();
+		HttpURLConnection conn = open("GET",
+				"upload=" + m_Sha256 + "&size=" + size + "&chunkSize=" + m_ChunkSize, m_StallTimeout);
+		BitSet received = new BitSet();
+		try {
+			int code = conn.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+				setDone(received);
+				return received;
+			}
+			check(conn);
+			try (BufferedReader in = new BufferedReader(
+					new InputStreamReader(conn.getInputStream(), JarWriter.UTF_8))) {
+				String line;
+				while (null != (line = in.readLine())) {
+					for (String s : line.split("[,\\s]+")) {
+						if (s.isEmpty()) {
+							continue;
+						}
+						int idx;
+						try {
+							idx = Integer.parseInt(s);
+						} catch (NumberFormatException e) {
+							throw new IOException("已收到的块不正确:" + line);
+						}
+						if (idx >= 0 && idx < m_ChunkSha256.length) {
+							received.set(idx);
+						}
+					}
+				}
+			}
+		} finally {
+			conn.disconnect();
+		}
+		setDone(received);
+		return received;
+	}
+
+	/* 上传缺少的块 */
+	private void uploadMissing(BitSet received) throws IOException, InterruptedException {
+		if (m_Connections > 1) {
+			uploadParallel(received);
+			return;
+		}
+		byte[] buffer = null;
+		try (RandomAccessFile raf = new RandomAccessFile(m_File, "r")) {
+			long size = raf.length();
+			for (int i = received.nextClearBit(0); i < m_ChunkSha256.length; i = received.nextClearBit(i + 1)) {
+				int len = (int) getChunkLength(i, size);
+				if (null == buffer || buffer.length < len) {
+					buffer = new byte[len];
+				}
+				raf.seek((long) i * m_ChunkSize);
+				raf.readFully(buffer, 0, len);
+				putChunk(i, buffer, len);
+				received.set(i);
+				m_Done += len;
+				progress(m_Done);
+			}
+		}
+	}
+
+	/* 多个连接并行上传缺少的块 */
+	private void uploadParallel(BitSet received) throws IOException, InterruptedException {
+		List<Integer> chunks = new ArrayList<Integer>();
+		for (int i = received.nextClearBit(0); i < m_ChunkSha256.length; i = received.nextClearBit(i + 1)) {
+			chunks.add(i);
+		}
+		if (chunks.isEmpty()) {
+			return;
+		}
+		EventLoopGroup group = new NioEventLoopGroup(Math.min(m_Connections, Runtime.getRuntime().availableProcessors()));
+		try {
+			m_Sending = 0;
+			ParallelChunkUploader uploader = new ParallelChunkUploader(group, m_File, m_Url, m_Sha256,
+					m_Authorization, m_ChunkSha256, m_ChunkSize, m_StallTimeout, new ParallelChunkUploader.Listener() {
+
+						@Override
+						public void sending(long delta) {
+							synchronized (ResumableUploader.this) {
+								m_Sending += delta;
+								progress(m_Done + m_Sending);
+							}
+						}
+
+						@Override
+						public void done(int index, int len) {
+							synchronized (ResumableUploader.this) {
+								m_Done += len;
+								m_Sending -= len;
+								progress(m_Done + m_Sending);
+							}
+						}
+					});
+			uploader.upload(chunks, m_Connections);
+		} finally {
+			group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+		}
+	}
+
+	/* 上传一块，写出时由看门狗检查停滞 */
+	private void putChunk(int index, byte[] data, int len) throws IOException {
+		final HttpURLConnection conn = open("PUT", "upload=" + m_Sha256 + "&chunk=" + index, m_StallTimeout);
+		final long[] last = new long[] { System.currentTimeMillis() };
+		ScheduledFuture<?> watchdog = WATCHDOG.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				if (System.currentTimeMillis() - last[0] > m_StallTimeout) {
+					// 断开后阻塞的写操作会抛出异常
+					conn.disconnect();
+				}
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+		try {
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(len);
+			conn.setRequestProperty("Content-Type", "application/octet-stream");
+			conn.setRequestProperty(CHUNK_SHA256_HEADER, m_ChunkSha256[index]);
+			try (OutputStream out = conn.getOutputStream()) {
+				for (int off = 0; off < len; off += WRITE_SIZE) {
+					out.write(data, off, Math.min(WRITE_SIZE, len - off));
+					last[0] = System.currentTimeMillis();
+					progress(m_Done + Math.min(off + WRITE_SIZE, len));
+				}
+			}
+			last[0] = System.currentTimeMillis();
+			check(conn);
+		} finally {
+			watchdog.cancel(false);
+			conn.disconnect();
+		}
+	}
+
+	/* 通知服务端拼接校验 */
+	private void finish() throws IOException {
+		HttpURLConnection conn = open("POST", "upload=" + m_Sha256 + "&finalize&size=" + m_File.length(),
+				Math.max(FINALIZE_TIMEOUT, m_StallTimeout));
+		try {
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(0);
+			conn.getOutputStream().close();
+			int code = conn.getResponseCode();
+			String message = readMessage(conn);
+			if (code < 200 || code >= 300) {
+				throw new StatusException(code, "完成上传" + m_File.getName() + "失败，响应码" + code + ":" + message);
+			}
+			if (null != m_ProgressBar) {
+				m_ProgressBar.response(code, message);
+			}
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private HttpURLConnection open(String method, String query, int readTimeout) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(m_Url + "?" + query).openConnection();
+		conn.setRequestMethod(method);
+		conn.setUseCaches(false);
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setReadTimeout(readTimeout);
+		if (null != m_Authorization) {
+			conn.setRequestProperty("Authorization", m_Authorization);
+		}
+		return conn;
+	}
+
+	private int getChunkCount(long size) {
+		long count = (size + m_ChunkSize - 1) / m_ChunkSize;
+		if (count > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("块大小" + m_ChunkSize + "太小");
+		}
+		// 空文件也有一块
+		return (int) Math.max(1, count);
+	}
+
+	private long getChunkLength(int index, long size) {
+		return Math.min(m_ChunkSize, size - (long) index * m_ChunkSize);
+	}
+
+	private void setDone(BitSet received) {
+		long size = m_File.length();
+		long done = 0;
+		for (int i = received.nextSetBit(0); i >= 0; i = received.nextSetBit(i + 1)) {
+			done += getChunkLength(i, size);
+		}
+		m_Done = done;
+		progress(done);
+	}
+
+	private void progress(long count) {
+		if (null != m_ProgressBar) {
+			m_ProgressBar.progress(count, m_File.length());
+		}
+	}
+
+	/* 可等待后重试的错误 */
+	static boolean isRetryable(IOException e) {
+		if (!(e instanceof StatusException)) {
+			return true;
+		}
+		int code = ((StatusException) e).code;
+		return code >= 500 || code == 408 || code == 409 || code == 422 || code == 429;
+	}
+
+	private static void check(HttpURLConnection conn) throws IOException {
+		int code = conn.getResponseCode();
+		if (code < 200 || code >= 300) {
+			throw new StatusException(code,
+					conn.getRequestMethod() + " " + conn.getURL() + "失败，响应码" + code + ":" + readMessage(conn));
+		}
+	}
+
+	private static String readMessage(HttpURLConnection conn) {
+		try (InputStream in = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream()) {
+			if (null == in) {
+				return "";
+			}
+			StringBuilder sb = new StringBuilder();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, JarWriter.UTF_8));
+			String line;
+			while (null != (line = reader.readLine()) && sb.length() < 1024) {
+				sb.append(line);
+			}
+			return sb.toString();
+		} catch (IOException e) {
+			return "";
+		}
+	}
+
+	/**
+	 * 服务端的错误响应
+	 */
+	static class StatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+		/** 响应码 */
+		final int code;
+
+		StatusException(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+}
@@ -11,16 +11,22 @@
 package cn.weforward.buildplugin.util;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 
 import cn.weforward.buildplugin.UploadProgressBar;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
@@ -29,15 +35,33 @@ import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.util.CharsetUtil;
 
 /**
  * 上传文件处理器
+ * <p>
+ * 连接建立后在事件循环中写出请求，不另开线程、也不逐块等待写完。文件内容分块以{@link DefaultFileRegion}写出，
+ * 由内核直接从文件发送（sendfile），不经过用户态的缓冲区；管道中有{@link SslHandler}时不能直接发送文件，改为读到缓冲区写出。
+ * <p>
+ * 按通道的可写状态控制流量：可写时连续写出，待发送的数据超过高水位后停下，降到低水位以下时（channelWritabilityChanged）继续，
+ * 发送缓冲区始终有数据，不会在块之间空等。块大小按实测的吞吐调整，约为{@link #CHUNK_INTERVAL}毫秒的数据量。
+ * 通道须配置{@link FileRegionSizeEstimator}（见{@link DistUtil}），否则FileRegion不计入待发送的数据量，整个文件会一次排入队列
  * 
  * @author daibo
  *
  */
-public class UploadFileHandler extends ChannelInboundHandlerAdapter implements Runnable {
+public class UploadFileHandler extends ChannelInboundHandlerAdapter {
+	/** 最小块大小 */
+	private static final int MIN_CHUNK_SIZE = 64 * 1024;
+	/** 最大块大小 */
+	private static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+	/** 初始块大小 */
+	private static final int INITIAL_CHUNK_SIZE = 256 * 1024;
+	/** 每块的目标发送时间（毫秒） */
+	static final int CHUNK_INTERVAL = 50;
+	/** 吞吐的采样间隔（毫秒） */
+	private static final int SAMPLE_INTERVAL = 200;
 
 	protected ChannelHandlerContext m_Ctx;
 
@@ -49,9 +73,29 @@ public class UploadFileHandler extends ChannelInboundHandlerAdapter implements R
 
 	private String m_Password;
 
-	protected Thread m_Thread;
-
 	protected UploadProgressBar m_ProgressBar;
+	/** 请求已写完或已报告失败 */
+	private volatile boolean m_Sent;
+	/** 文件通道，不能直接发送文件时读取用 */
+	private FileChannel m_FileChannel;
+	/** 是否直接发送文件 */
+	private boolean m_ZeroCopy;
+	/** 文件大小 */
+	private long m_Sum;
+	/** 下一块的位置 */
+	private long m_Position;
+	/** 已发送的字节数 */
+	private long m_Written;
+	/** 当前块大小 */
+	private int m_ChunkSize = INITIAL_CHUNK_SIZE;
+	/** 上次采样的时间 */
+	private long m_SampleTime;
+	/** 上次采样时已发送的字节数 */
+	private long m_SampleWritten;
+	/** 请求的结尾 */
+	private byte[] m_End;
+	/** 结尾是否已发送 */
+	private boolean m_EndWritten;
 
 	public UploadFileHandler(URI uri, File file, UploadProgressBar progressBar, String username, String password) {
 		m_Uri = uri;
@@ -64,27 +108,25 @@ public class UploadFileHandler extends ChannelInboundHandlerAdapter implements R
 	@Override
 	public void channelActive(ChannelHandlerContext ctx) throws Exception {
 		m_Ctx = ctx;
-		startUpload();
+		writeRequest();
 	}
 
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		stopUpload();
-	}
-
-	private synchronized void startUpload() {
-		if (null == m_Thread) {
-			Thread t = new Thread(this, "uploadfile-" + m_File.getName());
-			t.start();
-			m_Thread = t;
+		if (!m_Sent && null != m_ProgressBar) {
+			m_Sent = true;
+			m_ProgressBar.exception(new IOException("上传" + m_File.getName() + "时连接已断开"));
 		}
+		closeFile();
+		super.channelInactive(ctx);
 	}
 
-	private synchronized void stopUpload() {
-		if (null != m_Thread) {
-			m_Thread.interrupt();
-			m_Thread = null;
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		if (ctx.channel().isWritable()) {
+			pump();
 		}
+		super.channelWritabilityChanged(ctx);
 	}
 
 	@Override
@@ -106,14 +148,16 @@ public class UploadFileHandler extends ChannelInboundHandlerAdapter implements R
 		}
 	}
 
-	@Override
-	public void run() {
+	/* 写出请求，只在事件循环中（channelActive）调用，写出的状态都不加锁 */
+	private void writeRequest() {
 		File file = m_File;
-		try (FileInputStream fStream = new FileInputStream(file)) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			final long sum = raf.length();
 			String filename = file.getName();
-			DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_0, HttpMethod.GET,
+			DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_0, HttpMethod.POST,
 					m_Uri.getPath() + filename);
-			request.setMethod(HttpMethod.POST);
 			String end = "\r\n";
 			String twoHyphens = "--";
 			String boundary = "Weforward_Boundary______" + System.currentTimeMillis();
@@ -130,7 +174,7 @@ public class UploadFileHandler extends ChannelInboundHandlerAdapter implements R
 			byte[] endbs = endsb.toString().getBytes();
 
 			request.headers().add("Charset", "UTF-8");
-			request.headers().add(HttpHeaderNames.HOST, m_Uri.getHost());
+			request.headers().add(HttpHeaderNames.HOST, DistUtil.getHostHeader(m_Uri));
 			request.headers().add(HttpHeaderNames.CONTENT_TYPE, "multipart/form-data;boundary=" + boundary);
 			request.headers().add(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
 			if (!StringUtil.isEmpty(m_Username) && !StringUtil.isEmpty(m_Password)) {
@@ -139,38 +183,150 @@ public class UploadFileHandler extends ChannelInboundHandlerAdapter implements R
 				request.headers().add("Authorization", basic);
 			}
 
-			long l = startbs.length + file.length() + endbs.length;
+			long l = startbs.length + sum + endbs.length;
 			request.headers().add(HttpHeaderNames.CONTENT_LENGTH, l);
-			m_Ctx.writeAndFlush(request);
-
-			ChannelFuture future = m_Ctx.writeAndFlush(new DefaultHttpContent(Unpooled.wrappedBuffer(startbs)));
-			future.await();
-			int bufferSize = 1024 * 1024;
-			byte[] buffer = new byte[bufferSize];
-			int length = -1;
+			m_Ctx.write(request);
+			m_Ctx.write(new DefaultHttpContent(Unpooled.wrappedBuffer(startbs)));
 			if (null != m_ProgressBar) {
 				m_ProgressBar.start();
 			}
-			long count = 0;
-			long sum = file.length();
-			while ((length = fStream.read(buffer)) != -1) {
-				count += length;
-				if (null != m_ProgressBar) {
-					m_ProgressBar.progress(count, sum);
+			m_FileChannel = raf.getChannel();
+			raf = null;
+			m_ZeroCopy = null == m_Ctx.pipeline().get(SslHandler.class);
+			m_Sum = sum;
+			m_End = endbs;
+			m_SampleTime = System.currentTimeMillis();
+			pump();
+		} catch (Exception e) {
+			if (null != raf) {
+				try {
+					raf.close();
+				} catch (IOException ee) {
+					// 忽略
 				}
-				future = m_Ctx.writeAndFlush(new DefaultHttpContent(Unpooled.wrappedBuffer(buffer, 0, length))).sync();
-				future.await();
 			}
-			future = m_Ctx.writeAndFlush(new DefaultHttpContent(Unpooled.wrappedBuffer(endbs)));
-			future.await();
+			failed(e);
+		}
+	}
+
+	/* 通道可写时连续写出文件内容，写完后写出结尾 */
+	private void pump() {
+		if (m_Sent || null == m_End) {
+			return;
+		}
+		try {
+			while (m_Position < m_Sum && m_Ctx.channel().isWritable()) {
+				final int len = (int) Math.min(m_ChunkSize, m_Sum - m_Position);
+				Object content;
+				if (m_ZeroCopy) {
+					// 每块各自打开文件，写完即关闭
+					content = new DefaultFileRegion(m_File, m_Position, len);
+				} else {
+					content = new DefaultHttpContent(read(m_Position, len));
+				}
+				m_Position += len;
+				m_Ctx.write(content).addListener(new ChannelFutureListener() {
+
+					@Override
+					public void operationComplete(ChannelFuture future) {
+						if (future.isSuccess()) {
+							written(len);
+						} else {
+							failed(future.cause());
+						}
+					}
+				});
+			}
+			if (m_Position >= m_Sum) {
+				byte[] endbs = m_End;
+				m_End = null;
+				closeFile();
+				m_Ctx.write(new DefaultLastHttpContent(Unpooled.wrappedBuffer(endbs)))
+						.addListener(new ChannelFutureListener() {
+
+							@Override
+							public void operationComplete(ChannelFuture future) {
+								if (future.isSuccess()) {
+									m_EndWritten = true;
+									checkSent();
+								} else {
+									failed(future.cause());
+								}
+							}
+						});
+			}
+			m_Ctx.flush();
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/* 读取一块到缓冲区 */
+	private ByteBuf read(long position, int len) throws IOException {
+		ByteBuf buf = m_Ctx.alloc().buffer(len);
+		try {
+			while (buf.writableBytes() > 0) {
+				if (buf.writeBytes(m_FileChannel, position + buf.writerIndex(), buf.writableBytes()) < 0) {
+					throw new IOException(m_File + "已被截短");
+				}
+			}
+			return buf;
+		} catch (IOException | RuntimeException e) {
+			buf.release();
+			throw e;
+		}
+	}
+
+	/* 一块已发送，更新进度并按吞吐调整块大小 */
+	private void written(int len) {
+		m_Written += len;
+		if (null != m_ProgressBar) {
+			m_ProgressBar.progress(m_Written, m_Sum);
+		}
+		long now = System.currentTimeMillis();
+		long elapsed = now - m_SampleTime;
+		if (elapsed >= SAMPLE_INTERVAL) {
+			long rate = (m_Written - m_SampleWritten) * 1000 / elapsed;
+			long size = rate * CHUNK_INTERVAL / 1000;
+			// 按最小块大小取整，避免块大小频繁变化
+			size = size / MIN_CHUNK_SIZE * MIN_CHUNK_SIZE;
+			m_ChunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size));
+			m_SampleTime = now;
+			m_SampleWritten = m_Written;
+		}
+		checkSent();
+	}
+
+	/* 各块与结尾都已发送（经过加密等处理时完成的顺序不一定与写出的顺序一致） */
+	private void checkSent() {
+		if (m_EndWritten && m_Written >= m_Sum && !m_Sent) {
+			m_Sent = true;
 			if (null != m_ProgressBar) {
 				m_ProgressBar.end();
 			}
-		} catch (Exception e) {
-			if (null != m_ProgressBar) {
-				m_ProgressBar.exception(e);
+		}
+	}
+
+	private void closeFile() {
+		if (null != m_FileChannel) {
+			try {
+				m_FileChannel.close();
+			} catch (IOException e) {
+				// 忽略
 			}
+			m_FileChannel = null;
 		}
+	}
 
+	/* 上传失败 */
+	private void failed(Throwable e) {
+		closeFile();
+		if (!m_Sent) {
+			m_Sent = true;
+			if (null != m_ProgressBar) {
+				m_ProgressBar.exception(e instanceof Exception ? (Exception) e : new IOException(e));
+			}
+		}
+		m_Ctx.close();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 可续传上传的本地替身服务，实现{@link ResumableUploader}约定的查询、上传块与完成上传，块存在内存中
+ * <p>
+ * 可按PUT的次序（从1开始）注入故障：传到一半断开连接、返回409（块校验不符）、停住不读直到超时再断开
+ *
+ * @author daibo
+ *
+ */
+class ResumableStandInServer implements HttpHandler {
+	/** 故障：读一半后断开 */
+	static final int FAULT_DROP = 1;
+	/** 故障：返回409 */
+	static final int FAULT_CONFLICT = 2;
+	/** 故障：停住不读 */
+	static final int FAULT_STALL = 3;
+
+	/** 服务 */
+	private final HttpServer m_Server;
+	/** 处理线程 */
+	private final ExecutorService m_Executor;
+	/** 各上传已收到的块 */
+	private final Map<String, Map<Integer, byte[]>> m_Uploads;
+	/** 已发布的文件，键为路径 */
+	private final Map<String, byte[]> m_Published;
+	/** 按PUT次序注入的故障 */
+	private final Map<Integer, Integer> m_Faults;
+	/** PUT的次数 */
+	private final AtomicInteger m_Puts;
+	/** 停住的时间（毫秒） */
+	private int m_StallMillis = 5000;
+
+	ResumableStandInServer() throws IOException {
+		m_Uploads = new ConcurrentHashMap<String, Map<Integer, byte[]>>();
+		m_Published = new ConcurrentHashMap<String, byte[]>();
+		m_Faults = new ConcurrentHashMap<Integer, Integer>();
+		m_Puts = new AtomicInteger();
+		m_Executor = Executors.newCachedThreadPool();
+		m_Server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		m_Server.createContext("/", this);
+		m_Server.setExecutor(m_Executor);
+		m_Server.start();
+	}
+
+	/**
+	 * 上传地址
+	 *
+	 * @return http://127.0.0.1:&lt;端口&gt;/dist/
+	 */
+	String getUrl() {
+		return "http://127.0.0.1:" + m_Server.getAddress().getPort() + "/dist/";
+	}
+
+	/**
+	 * 在第n次PUT时注入故障
+	 *
+	 * @param put   PUT的次序，从1开始
+	 * @param fault 故障
+	 */
+	void inject(int put, int fault) {
+		m_Faults.put(put, fault);
+	}
+
+	void setStallMillis(int millis) {
+		m_StallMillis = millis;
+	}
+
+	int getPuts() {
+		return m_Puts.get();
+	}
+
+	/**
+	 * 已发布的文件内容
+	 *
+	 * @param name 文件名
+	 * @return 没有时返回null
+	 */
+	byte[] getPublished(String name) {
+		return m_Published.get("/dist/" + name);
+	}
+
+	void stop() {
+		m_Server.stop(0);
+		m_Executor.shutdownNow();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		String upload = query.get("upload");
+		String method = exchange.getRequestMethod();
+		if (null == upload) {
+			reply(exchange, 400, "no upload");
+		} else if ("GET".equals(method)) {
+			Map<Integer, byte[]> chunks = m_Uploads.get(upload);
+			if (null == chunks) {
+				reply(exchange, 404, "");
+				return;
+			}
+			StringBuilder sb = new StringBuilder();
+			for (Integer i : new TreeMap<Integer, byte[]>(chunks).keySet()) {
+				sb.append(sb.length() > 0 ? "," : "").append(i);
+			}
+			reply(exchange, 200, sb.toString());
+		} else if ("PUT".equals(method)) {
+			put(exchange, upload, Integer.parseInt(query.get("chunk")));
+		} else if ("POST".equals(method)) {
+			finish(exchange, upload);
+		} else {
+			reply(exchange, 405, method);
+		}
+	}
+
+	private void put(HttpExchange exchange, String upload, int index) throws IOException {
+		Integer fault = m_Faults.get(m_Puts.incrementAndGet());
+		int length = Integer.parseInt(exchange.getRequestHeaders().getFirst("Content-Length"));
+		InputStream in = exchange.getRequestBody();
+		if (null != fault && fault == FAULT_DROP) {
+			read(in, length / 2);
+			// 处理器抛出异常时服务直接关闭连接
+			throw new IOException("注入的故障：断开");
+		}
+		if (null != fault && fault == FAULT_STALL) {
+			try {
+				Thread.sleep(m_StallMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			throw new IOException("注入的故障：停滞");
+		}
+		byte[] data = read(in, length);
+		String sha256 = exchange.getRequestHeaders().getFirst(ResumableUploader.CHUNK_SHA256_HEADER);
+		if ((null != fault && fault == FAULT_CONFLICT) || !sha256(data).equals(sha256)) {
+			reply(exchange, 409, "checksum");
+			return;
+		}
+		Map<Integer, byte[]> chunks = m_Uploads.get(upload);
+		if (null == chunks) {
+			m_Uploads.put(upload, new ConcurrentHashMap<Integer, byte[]>());
+			chunks = m_Uploads.get(upload);
+		}
+		chunks.put(index, data);
+		reply(exchange, 201, "");
+	}
+
+	private void finish(HttpExchange exchange, String upload) throws IOException {
+		Map<Integer, byte[]> chunks = m_Uploads.get(upload);
+		if (null == chunks) {
+			reply(exchange, 404, "");
+			return;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] chunk : new TreeMap<Integer, byte[]>(chunks).values()) {
+			out.write(chunk);
+		}
+		byte[] data = out.toByteArray();
+		if (!sha256(data).equals(upload)) {
+			reply(exchange, 422, "digest");
+			return;
+		}
+		m_Published.put(exchange.getRequestURI().getPath(), data);
+		reply(exchange, 200, "published");
+	}
+
+	private static byte[] read(InputStream in, int length) throws IOException {
+		byte[] data = new byte[length];
+		int off = 0;
+		while (off < length) {
+			int l = in.read(data, off, length - off);
+			if (l < 0) {
+				throw new IOException("请求体不完整");
+			}
+			off += l;
+		}
+		return data;
+	}
+
+	private static void reply(HttpExchange exchange, int code, String body) throws IOException {
+		byte[] bs = body.getBytes(JarWriter.UTF_8);
+		exchange.sendResponseHeaders(code, bs.length > 0 ? bs.length : -1);
+		try (OutputStream out = exchange.getResponseBody()) {
+			if (bs.length > 0) {
+				out.write(bs);
+			}
+		}
+	}
+
+	private static Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> map = new HashMap<String, String>();
+		if (null == query) {
+			return map;
+		}
+		for (String pair : query.split("&")) {
+			int idx = pair.indexOf('=');
+			String key = idx < 0 ? pair : pair.substring(0, idx);
+			String value = idx < 0 ? "" : pair.substring(idx + 1);
+			map.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+		}
+		return map;
+	}
+
+	static String sha256(byte[] data) {
+		MessageDigest md = DigestCache.newSha256();
+		return DigestCache.toHex(md.digest(data));
+	}
+}
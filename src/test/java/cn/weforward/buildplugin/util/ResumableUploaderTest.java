@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2019,2020 honintech
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the “Software”), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package cn.weforward.buildplugin.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * {@link ResumableUploader}对着本地替身服务（{@link ResumableStandInServer}）的故障恢复测试
+ *
+ * @author daibo
+ *
+ */
+public class ResumableUploaderTest {
+	/** 块大小 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	/** 块数 */
+	private static final int CHUNKS = 5;
+
+	@Rule
+	public TemporaryFolder m_Temp = new TemporaryFolder();
+
+	private ResumableStandInServer m_Server;
+	private File m_File;
+	private byte[] m_Data;
+
+	@Before
+	public void setUp() throws IOException {
+		m_Server = new ResumableStandInServer();
+		// 最后一块不满
+		m_Data = new byte[CHUNK_SIZE * (CHUNKS - 1) + 1000];
+		new Random(1).nextBytes(m_Data);
+		m_File = m_Temp.newFile("app.jar");
+		Files.write(m_File.toPath(), m_Data);
+	}
+
+	@After
+	public void tearDown() {
+		m_Server.stop();
+	}
+
+	@Test
+	public void uploadWithoutFaults() throws Exception {
+		newUploader(1).upload();
+		assertArrayEquals(m_Data, m_Server.getPublished("app.jar"));
+		assertEquals(CHUNKS, m_Server.getPuts());
+	}
+
+	@Test
+	public void droppedChunkIsResent() throws Exception {
+		m_Server.inject(2, ResumableStandInServer.FAULT_DROP);
+		newUploader(1).upload();
+		assertArrayEquals(m_Data, m_Server.getPublished("app.jar"));
+		// 只补传断开的那块
+		assertEquals(CHUNKS + 1, m_Server.getPuts());
+	}
+
+	@Test
+	public void checksumMismatchIsRetried() throws Exception {
+		m_Server.inject(1, ResumableStandInServer.FAULT_CONFLICT);
+		m_Server.inject(2, ResumableStandInServer.FAULT_CONFLICT);
+		newUploader(1).upload();
+		assertArrayEquals(m_Data, m_Server.getPublished("app.jar"));
+	}
+
+	@Test
+	public void stalledChunkIsAbandoned() throws Exception {
+		m_Server.inject(3, ResumableStandInServer.FAULT_STALL);
+		m_Server.setStallMillis(10 * 1000);
+		long start = System.currentTimeMillis();
+		newUploader(1).upload();
+		assertArrayEquals(m_Data, m_Server.getPublished("app.jar"));
+		// 停滞时间为1秒，不会等到替身服务自己断开
+		assertTrue(System.currentTimeMillis() - start < 10 * 1000);
+	}
+
+	@Test
+	public void parallelUploadRecoversDroppedChunk() throws Exception {
+		m_Server.inject(2, ResumableStandInServer.FAULT_DROP);
+		newUploader(3).upload();
+		assertArrayEquals(m_Data, m_Server.getPublished("app.jar"));
+	}
+
+	@Test
+	public void rerunOnlyFinalizes() throws Exception {
+		newUploader(1).upload();
+		newUploader(1).upload();
+		assertEquals(CHUNKS, m_Server.getPuts());
+		assertArrayEquals(m_Data, m_Server.getPublished("app.jar"));
+	}
+
+	private ResumableUploader newUploader(int connections) {
+		ResumableUploader uploader = new ResumableUploader(m_Server.getUrl(), m_File, null, null);
+		uploader.setChunkSize(CHUNK_SIZE);
+		uploader.setStallTimeout(1000);
+		uploader.setMaxRetries(3);
+		uploader.setConnections(connections);
+		return uploader;
+	}
+}